@@ -0,0 +1,133 @@
+package biometrics;
+
+/**
+ * Tabulated version of the spatial and directional contributions of
+ * {@link MCCBase}. The spatial contribution only depends on the distance
+ * between the neighbor and the cell center (which never exceeds 3*sigmaS),
+ * the directional one only depends on the absolute angular difference
+ * (which never exceeds PI). Both are sampled once and linearly interpolated.
+ * @author Jonathan Cheseaux (jonathan.cheseaux@epfl.ch)
+ *
+ */
+public class ContributionTable {
+
+	/** spatial contributions sampled over [0, 3*sigmaS] **/
+	private double[] spatial;
+	/** directional contributions (non-zero difference case) sampled over [0, PI] **/
+	private double[] directional;
+	/** exact directional contribution for a null angular difference **/
+	private double directionalZero;
+	/** inverse of the spatial sampling step **/
+	private double spatialScale;
+	/** inverse of the directional sampling step **/
+	private double directionalScale;
+	/** upper bound of the absolute error made on a cmS*cmD product **/
+	private double contributionErrorBound;
+	/** upper bound of the absolute error made on a cell of the template **/
+	private double cellErrorBound;
+
+	/**
+	 * Samples the contributions of the given engine
+	 * @param engine the MCC engine whose exact contributions are tabulated
+	 * @param nd cylinder height discretization step
+	 * @param sigmaS spatial standard deviation
+	 * @param sigmaD directional standard deviation
+	 * @param spatialSteps number of sampling intervals over [0, 3*sigmaS]
+	 * @param directionalSteps number of sampling intervals over [0, PI]
+	 */
+	public ContributionTable(MCCBase engine, int nd, double sigmaS, double sigmaD, int spatialSteps, int directionalSteps) {
+		if (spatialSteps < 1 || directionalSteps < 1) {
+			throw new IllegalArgumentException("Lookup table resolution must be at least 1");
+		}
+		double deltaD = 2*Math.PI/(double)nd;
+		double hS = 3*sigmaS/spatialSteps;
+		double hD = Math.PI/directionalSteps;
+		this.spatialScale = 1/hS;
+		this.directionalScale = 1/hD;
+
+		this.spatial = new double[spatialSteps + 2];
+		for (int i = 0; i < spatial.length; i++) {
+			spatial[i] = engine.cmS(i*hS);
+		}
+
+		double cD = 1/(sigmaD*Math.sqrt(2*Math.PI));
+		this.directionalZero = engine.cmD(0);
+		this.directional = new double[directionalSteps + 2];
+		// the first sample is the limit of the non-zero branch of cmD
+		directional[0] = cD*(0.75*deltaD*engine.gaus(0, sigmaD)+0.25*deltaD*engine.gaus(-0.5*deltaD, sigmaD));
+		for (int i = 1; i < directional.length; i++) {
+			directional[i] = engine.cmD(i*hD);
+		}
+
+		// linear interpolation error is at most h^2/8 * max|f''|, and the second
+		// derivative of a zero-mean Gaussian peaks at 0 with |f''(0)| = f(0)/sigma^2
+		double cS = 1/(sigmaS*Math.sqrt(2*Math.PI));
+		double maxS = cS;
+		double maxD = cD*deltaD;
+		double errS = hS*hS/8 * cS/(sigmaS*sigmaS);
+		double errD = hD*hD/8 * maxD/(sigmaD*sigmaD);
+		this.contributionErrorBound = errS*maxD + maxS*errD + errS*errD;
+		// a cell sums the contributions of at most all the other minutiae, then goes
+		// through the sigmoid, whose slope never exceeds tau/4
+		int maxNeighbors = Math.max(0, engine.getMinutiaeCount() - 1);
+		this.cellErrorBound = maxNeighbors*contributionErrorBound*MCCBase.TAU_PSI/4;
+	}
+
+	/**
+	 * Interpolated spatial contribution
+	 * @param t Euclidean distance between the neighbor and the cell center
+	 * @return spatial contribution of the neighbor on current cell
+	 */
+	public double cmS(double t) {
+		return interpolate(spatial, t*spatialScale);
+	}
+
+	/**
+	 * Interpolated directional contribution
+	 * @param diff angular difference between the cell direction and the relative neighbor direction
+	 * @return directional contribution of the neighbor on current cell
+	 */
+	public double cmD(double diff) {
+		diff = Math.abs(diff);
+		if (diff == 0) {
+			return directionalZero;
+		}
+		return interpolate(directional, diff*directionalScale);
+	}
+
+	/**
+	 * Returns an upper bound of the absolute difference between the tabulated
+	 * cmS*cmD product and the exact one. This does not bound a cell, which sums
+	 * many contributions, see {@link #getCellErrorBound()}.
+	 * @return the maximal absolute error on a single contribution
+	 */
+	public double getContributionErrorBound() {
+		return contributionErrorBound;
+	}
+
+	/**
+	 * Returns an upper bound of the absolute difference between a cell of the
+	 * template computed with the tables and the exact one : the contribution
+	 * bound times the number of neighbors of the engine, times the largest
+	 * slope of the sigmoid.
+	 * @return the maximal absolute error on a template cell
+	 */
+	public double getCellErrorBound() {
+		return cellErrorBound;
+	}
+
+	/**
+	 * Linear interpolation in a table of equally spaced samples
+	 * @param table the samples
+	 * @param pos the position expressed in sampling steps
+	 * @return the interpolated value, clamped to the last sample
+	 */
+	private static double interpolate(double[] table, double pos) {
+		int i = (int) pos;
+		if (i >= table.length - 1) {
+			return table[table.length - 1];
+		}
+		double frac = pos - i;
+		return table[i] + frac*(table[i + 1] - table[i]);
+	}
+}
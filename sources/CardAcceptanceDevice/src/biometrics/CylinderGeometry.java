@@ -0,0 +1,103 @@
+package biometrics;
+
+import java.util.HashMap;
+
+/**
+ * Constants of the cylinder discretization which only depend on (ns, nd, r) :
+ * cell sizes, relative positions of the cell centers and directions of the
+ * directional cells. Instances are immutable and shared between all the
+ * {@link MCCBase} using the same discretization.
+ * @author Jonathan Cheseaux (jonathan.cheseaux@epfl.ch)
+ *
+ */
+public class CylinderGeometry {
+
+	/** already computed geometries, keyed by (ns, nd, r) **/
+	private static final HashMap<String, CylinderGeometry> cache = new HashMap<String, CylinderGeometry>();
+
+	/** cylinder discretization in spatial dimension (base) **/
+	private final int ns;
+	/** cylinder discretization in directional dimension (height) **/
+	private final int nd;
+	/** size of a directional cell **/
+	private final double deltaD;
+	/** size of a spatial cell **/
+	private final double deltaS;
+	/** position of the i-th cell center relative to the cylinder center, in cells (i+1 - (ns+1)/2) **/
+	private final double[] offsets;
+	/** direction of the k-th directional cell **/
+	private final double[] dphi;
+
+	/**
+	 * Computes the geometry of a cylinder
+	 * @param ns cylinder base discretization step
+	 * @param nd cylinder height discretization step
+	 * @param r cylinder radius
+	 */
+	private CylinderGeometry(int ns, int nd, int r) {
+		this.ns = ns;
+		this.nd = nd;
+		this.deltaD = 2*Math.PI/((double)(nd));
+		this.deltaS = 2*(double)r/(double)ns;
+		double ind = ((double)ns+1)/2;
+		this.offsets = new double[ns];
+		for (int i = 0; i < ns; i++) {
+			offsets[i] = ((double)i+1)-ind;
+		}
+		this.dphi = new double[nd];
+		for (int k = 0; k < nd; k++) {
+			dphi[k] = -1*Math.PI+ ((double)k+0.5)*deltaD;
+		}
+	}
+
+	/**
+	 * Returns the (shared) geometry of a cylinder
+	 * @param ns cylinder base discretization step
+	 * @param nd cylinder height discretization step
+	 * @param r cylinder radius
+	 * @return the geometry for these parameters
+	 */
+	public static synchronized CylinderGeometry get(int ns, int nd, int r) {
+		String key = ns + "/" + nd + "/" + r;
+		CylinderGeometry geometry = cache.get(key);
+		if (geometry == null) {
+			geometry = new CylinderGeometry(ns, nd, r);
+			cache.put(key, geometry);
+		}
+		return geometry;
+	}
+
+	public int getNs() {
+		return ns;
+	}
+
+	public int getNd() {
+		return nd;
+	}
+
+	public double getDeltaD() {
+		return deltaD;
+	}
+
+	public double getDeltaS() {
+		return deltaS;
+	}
+
+	/**
+	 * Position of a cell center relative to the cylinder center, in cells
+	 * @param i index of the cell along one of the base axes
+	 * @return i+1 - (ns+1)/2
+	 */
+	public double getOffset(int i) {
+		return offsets[i];
+	}
+
+	/**
+	 * Direction of a directional cell
+	 * @param k index of the directional cell
+	 * @return -PI + (k+0.5)*deltaD
+	 */
+	public double getDphi(int k) {
+		return dphi[k];
+	}
+}
@@ -0,0 +1,234 @@
+package biometrics;
+
+import java.util.Arrays;
+
+/**
+ * Coarse index over a {@link TemplateGallery}, used to narrow a 1:N search to a
+ * shortlist before the full LSS scoring. Every entry is summarized by two
+ * histograms : the directions of its minutiae (compared up to a small circular
+ * shift, to tolerate the rotation of the finger) and the norms of its cylinders.
+ * The entries whose histograms are the closest to the probe ones are shortlisted.
+ * The index must be {@link #update() updated} after entries are added to the gallery.
+ * @author Jonathan Cheseaux (jonathan.cheseaux@epfl.ch)
+ *
+ */
+public class GalleryIndex {
+
+	/** default number of direction bins (30 degrees each) **/
+	public static final int DEFAULT_DIRECTION_BINS = 12;
+	/** default number of cylinder norm bins **/
+	public static final int DEFAULT_NORM_BINS = 8;
+	/** default maximum circular shift of the direction histograms, in bins **/
+	public static final int DEFAULT_MAX_SHIFT = 1;
+
+	/** the indexed gallery **/
+	private TemplateGallery gallery;
+	/** number of direction bins **/
+	private int directionBins;
+	/** number of cylinder norm bins **/
+	private int normBins;
+	/** maximum circular shift of the direction histograms, in bins **/
+	private int maxShift;
+	/** number of bits of a cylinder, the largest possible norm **/
+	private int cylinderBits;
+
+	/** number of indexed entries **/
+	private int size;
+	/** direction histograms of the entries, directionBins counts per entry **/
+	private int[] directionHistograms = new int[0];
+	/** norm histograms of the entries, normBins counts per entry **/
+	private int[] normHistograms = new int[0];
+	/** number of cylinders of the entries **/
+	private int[] cylinders = new int[0];
+
+	/**
+	 * Index with the default resolution
+	 * @param gallery the gallery to index
+	 */
+	public GalleryIndex(TemplateGallery gallery) {
+		this(gallery, DEFAULT_DIRECTION_BINS, DEFAULT_NORM_BINS, DEFAULT_MAX_SHIFT);
+	}
+
+	/**
+	 * Initialization constructor.
+	 * @param gallery the gallery to index
+	 * @param directionBins number of direction bins over 360 degrees
+	 * @param normBins number of cylinder norm bins
+	 * @param maxShift maximum circular shift of the direction histograms, in bins
+	 */
+	public GalleryIndex(TemplateGallery gallery, int directionBins, int normBins, int maxShift) {
+		if (directionBins < 1 || normBins < 1 || maxShift < 0) {
+			throw new IllegalArgumentException("Invalid index resolution");
+		}
+		this.gallery = gallery;
+		this.directionBins = directionBins;
+		this.normBins = normBins;
+		this.maxShift = Math.min(maxShift, directionBins / 2);
+		this.cylinderBits = gallery.getWordsPerCylinder() * 64;
+		update();
+	}
+
+	/**
+	 * Indexes the entries added to the gallery since the last update
+	 */
+	public void update() {
+		int total = gallery.size();
+		if (total == size) {
+			return;
+		}
+		directionHistograms = Arrays.copyOf(directionHistograms, total * directionBins);
+		normHistograms = Arrays.copyOf(normHistograms, total * normBins);
+		cylinders = Arrays.copyOf(cylinders, total);
+		for (int e = size; e < total; e++) {
+			int first = gallery.getStart(e);
+			int count = gallery.getCylinders(e);
+			histograms(gallery.getNorms(), gallery.getDirections(), first, count,
+					directionHistograms, e * directionBins, normHistograms, e * normBins);
+			cylinders[e] = count;
+		}
+		size = total;
+	}
+
+	/**
+	 * Builds the histograms of a template
+	 * @param norms the cylinder norms
+	 * @param directions the minutiae directions in degrees
+	 * @param first index of the first cylinder of the template
+	 * @param count number of cylinders of the template
+	 * @param directionDest destination of the direction histogram
+	 * @param directionOffset index of the first bin in directionDest
+	 * @param normDest destination of the norm histogram
+	 * @param normOffset index of the first bin in normDest
+	 */
+	private void histograms(int[] norms, short[] directions, int first, int count,
+			int[] directionDest, int directionOffset, int[] normDest, int normOffset) {
+		for (int c = first; c < first + count; c++) {
+			int degrees = ((directions[c] % 360) + 360) % 360;
+			directionDest[directionOffset + degrees * directionBins / 360]++;
+			normDest[normOffset + Math.min(normBins - 1, norms[c] * normBins / cylinderBits)]++;
+		}
+	}
+
+	/**
+	 * Selects the entries of the gallery closest to a probe
+	 * @param probe the challenger's template
+	 * @param size maximum number of entries to select
+	 * @param dest destination, at least min(size, gallery size) long
+	 * @return the number of selected entries, written in dest in ascending index order
+	 */
+	public int shortlist(PackedTemplate probe, int size, int[] dest) {
+		if (probe.getWordsPerCylinder() * 64 != cylinderBits) {
+			throw new IllegalArgumentException("Probe cylinders do not have the gallery size");
+		}
+		size = Math.min(size, this.size);
+		if (size <= 0) {
+			return 0;
+		}
+		if (size == this.size) {
+			for (int e = 0; e < size; e++) {
+				dest[e] = e;
+			}
+			return size;
+		}
+		int[] probeDirections = new int[directionBins];
+		int[] probeNorms = new int[normBins];
+		histograms(probe.getNorms(), probe.getDirections(), 0, probe.getCylinders(), probeDirections, 0, probeNorms, 0);
+
+		// bounded max-heap of the selected entries, the worst one (largest distance, then
+		// largest index) at the root : entries at the limit distance are kept in gallery order
+		int[] heap = new int[size];
+		double[] keys = new double[size];
+		int count = 0;
+		for (int e = 0; e < this.size; e++) {
+			double d = distance(probeDirections, probeNorms, probe.getCylinders(), e);
+			if (count < size) {
+				// sift up, e has the largest index so far and loses the ties
+				int child = count++;
+				while (child > 0) {
+					int parent = (child - 1) / 2;
+					if (d < keys[parent]) {
+						break;
+					}
+					heap[child] = heap[parent];
+					keys[child] = keys[parent];
+					child = parent;
+				}
+				heap[child] = e;
+				keys[child] = d;
+			} else if (d < keys[0]) {
+				// replace the worst selected entry and sift down
+				int parent = 0;
+				while (true) {
+					int child = 2 * parent + 1;
+					if (child >= count) {
+						break;
+					}
+					if (child + 1 < count && worse(keys[child + 1], heap[child + 1], keys[child], heap[child])) {
+						child++;
+					}
+					if (!worse(keys[child], heap[child], d, e)) {
+						break;
+					}
+					heap[parent] = heap[child];
+					keys[parent] = keys[child];
+					parent = child;
+				}
+				heap[parent] = e;
+				keys[parent] = d;
+			}
+		}
+		System.arraycopy(heap, 0, dest, 0, count);
+		Arrays.sort(dest, 0, count);
+		return count;
+	}
+
+	/**
+	 * Order of the shortlist heap
+	 * @param distanceA distance of the first entry
+	 * @param a index of the first entry
+	 * @param distanceB distance of the second entry
+	 * @param b index of the second entry
+	 * @return true if the first entry is selected after the second one
+	 */
+	private static boolean worse(double distanceA, int a, double distanceB, int b) {
+		return distanceA > distanceB || (distanceA == distanceB && a > b);
+	}
+
+	/**
+	 * Distance between the histograms of a probe and of an entry : L1 distance of the
+	 * normalized direction histograms, minimized over the circular shifts, plus L1
+	 * distance of the normalized norm histograms. Both terms lie in [0,2].
+	 * @param probeDirections direction histogram of the probe
+	 * @param probeNorms norm histogram of the probe
+	 * @param probeCylinders number of cylinders of the probe
+	 * @param e index of the entry
+	 * @return the distance, 0 for identical histograms
+	 */
+	private double distance(int[] probeDirections, int[] probeNorms, int probeCylinders, int e) {
+		int n = cylinders[e];
+		if (n == 0 || probeCylinders == 0) {
+			return n == probeCylinders ? 0 : 4;
+		}
+		// counts are compared on the common scale n*probeCylinders
+		int offset = e * directionBins;
+		long best = Long.MAX_VALUE;
+		for (int shift = -maxShift; shift <= maxShift; shift++) {
+			long sum = 0;
+			for (int b = 0; b < directionBins; b++) {
+				int shifted = (b + shift + directionBins) % directionBins;
+				sum += Math.abs(probeDirections[b] * n - directionHistograms[offset + shifted] * probeCylinders);
+			}
+			best = Math.min(best, sum);
+		}
+		offset = e * normBins;
+		long norms = 0;
+		for (int b = 0; b < normBins; b++) {
+			norms += Math.abs(probeNorms[b] * n - normHistograms[offset + b] * probeCylinders);
+		}
+		return (best + norms) / (double) (n * probeCylinders);
+	}
+
+	public int size() {
+		return size;
+	}
+}
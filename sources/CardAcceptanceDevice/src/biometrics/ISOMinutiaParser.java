@@ -0,0 +1,89 @@
+package biometrics;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Binary parser of ISO/IEC 19794-2 finger minutiae records (FVC .ist files).
+ * The whole record is read at once and the fields are decoded with bit masks.
+ * @author Jonathan Cheseaux (jonathan.cheseaux@epfl.ch)
+ *
+ */
+public class ISOMinutiaParser {
+
+	/** offset of the number of minutiae in the record **/
+	public static final int OFFSET_MINUTIAE_COUNT = 27;
+
+	/** offset of the first minutia in the record **/
+	public static final int OFFSET_MINUTIAE = 28;
+
+	/** size of a minutia in the record **/
+	public static final int MINUTIA_SIZE = 6;
+
+	/** files larger than this are memory-mapped instead of read **/
+	private static final long MAP_THRESHOLD = 1 << 20;
+
+	/**
+	 * Parses a record file
+	 * @param file the .ist file
+	 * @return the minutiae of the record
+	 * @throws IOException if the file cannot be read or is not a valid record
+	 */
+	public static PackedMinutiae parse(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			ByteBuffer buffer;
+			if (size > MAP_THRESHOLD) {
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			} else {
+				buffer = ByteBuffer.allocate((int) size);
+				while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+					// read until the buffer is full
+				}
+				buffer.flip();
+			}
+			return parse(buffer);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Parses a record held between the position and the limit of a buffer
+	 * (heap, direct or mapped, whatever its byte order). The buffer position is left unchanged.
+	 * @param buffer the record
+	 * @return the minutiae of the record
+	 * @throws IOException if the buffer does not contain a valid record
+	 */
+	public static PackedMinutiae parse(ByteBuffer buffer) throws IOException {
+		int base = buffer.position();
+		int length = buffer.limit() - base;
+		if (length <= OFFSET_MINUTIAE_COUNT) {
+			throw new IOException("Truncated ISO record : " + length + " bytes");
+		}
+		int numMinutiae = buffer.get(base + OFFSET_MINUTIAE_COUNT) & 0xFF;
+		int available = (length - OFFSET_MINUTIAE) / MINUTIA_SIZE;
+		if (numMinutiae > available) {
+			throw new IOException("Truncated ISO record : " + numMinutiae + " minutiae declared, "
+					+ available + " present");
+		}
+		PackedMinutiae result = new PackedMinutiae(numMinutiae);
+
+		int pos = base + OFFSET_MINUTIAE;
+		for (int i = 0; i < numMinutiae; i++) {
+			// 2 bits of type and 1 reserved bit precede the 13-bit coordinates
+			int x = ((buffer.get(pos) & 0x1F) << 8) | (buffer.get(pos + 1) & 0xFF);
+			int y = ((buffer.get(pos + 2) & 0x1F) << 8) | (buffer.get(pos + 3) & 0xFF);
+			int angle = buffer.get(pos + 4) & 0xFF;
+			int quality = buffer.get(pos + 5) & 0xFF;
+			result.add(x, y, angle, quality);
+			pos += MINUTIA_SIZE;
+		}
+		return result;
+	}
+}
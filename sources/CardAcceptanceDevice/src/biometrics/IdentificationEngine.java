@@ -0,0 +1,253 @@
+package biometrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * 1:N identification : scores a probe against every entry of a {@link TemplateGallery}
+ * with the card's LSS score and returns the best candidates. The gallery is split
+ * into slices scored in parallel, each slice keeping its own best candidates.
+ * The search can be restricted to the shortlist of a {@link GalleryIndex}.
+ * @author Jonathan Cheseaux (jonathan.cheseaux@epfl.ch)
+ *
+ */
+public class IdentificationEngine {
+
+	/** number of gallery entries scored by one task **/
+	private static final int SLICE_SIZE = 1024;
+
+	/**
+	 * A gallery entry and its score against the probe
+	 */
+	public static class Candidate {
+		/** index of the entry in the gallery **/
+		private int index;
+		/** identifier of the enrolled user **/
+		private String id;
+		/** score as returned by the card **/
+		private int score;
+
+		public Candidate(int index, String id, int score) {
+			this.index = index;
+			this.id = id;
+			this.score = score;
+		}
+
+		public int getIndex() {
+			return index;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public int getScore() {
+			return score;
+		}
+
+		/**
+		 * @return the score in [0,1], as displayed by the card reader
+		 */
+		public double getNormalizedScore() {
+			return LSSMatcher.normalize(score);
+		}
+
+		@Override
+		public String toString() {
+			return id + " : " + getNormalizedScore();
+		}
+	}
+
+	/** best candidates first, ties broken by gallery order **/
+	private static final Comparator<Candidate> BEST_FIRST = new Comparator<Candidate>() {
+		@Override
+		public int compare(Candidate a, Candidate b) {
+			if (a.score != b.score) {
+				return a.score > b.score ? -1 : 1;
+			}
+			return a.index < b.index ? -1 : (a.index == b.index ? 0 : 1);
+		}
+	};
+
+	/** worst candidate at the head of the bounded heaps **/
+	private static final Comparator<Candidate> WORST_FIRST = new Comparator<Candidate>() {
+		@Override
+		public int compare(Candidate a, Candidate b) {
+			return BEST_FIRST.compare(b, a);
+		}
+	};
+
+	/** the enrolled templates **/
+	private TemplateGallery gallery;
+	/** maximum directional difference between two matchable minutiae **/
+	private int deltaTheta;
+
+	/**
+	 * Engine using the same directional tolerance as the card
+	 * @param gallery the enrolled templates
+	 */
+	public IdentificationEngine(TemplateGallery gallery) {
+		this(gallery, LSSMatcher.DEFAULT_DELTA_THETA);
+	}
+
+	/**
+	 * Initialization constructor.
+	 * @param gallery the enrolled templates
+	 * @param deltaTheta the maximum directional difference (in degrees) between two matchable minutiae
+	 */
+	public IdentificationEngine(TemplateGallery gallery, int deltaTheta) {
+		this.gallery = gallery;
+		this.deltaTheta = deltaTheta;
+	}
+
+	/**
+	 * Identifies a probe in the calling thread
+	 * @param probe the challenger's template
+	 * @param k number of candidates to return
+	 * @return at most k candidates, best score first, none if k <= 0
+	 */
+	public Candidate[] identify(PackedTemplate probe, int k) {
+		if (k <= 0) {
+			return new Candidate[0];
+		}
+		return toSortedArray(search(probe, k, null, 0, gallery.size()));
+	}
+
+	/**
+	 * Identifies a probe in the calling thread, scoring only the shortlist of an index
+	 * @param probe the challenger's template
+	 * @param k number of candidates to return
+	 * @param index the index over the gallery
+	 * @param shortlist number of entries selected by the index
+	 * @return at most k candidates, best score first, none if k <= 0
+	 */
+	public Candidate[] identify(PackedTemplate probe, int k, GalleryIndex index, int shortlist) {
+		if (k <= 0) {
+			return new Candidate[0];
+		}
+		int[] entries = new int[Math.max(0, Math.min(shortlist, gallery.size()))];
+		int count = index.shortlist(probe, shortlist, entries);
+		return toSortedArray(search(probe, k, entries, 0, count));
+	}
+
+	/**
+	 * Identifies a probe, scoring slices of the gallery in parallel
+	 * @param probe the challenger's template
+	 * @param k number of candidates to return
+	 * @param executor the executor running the slices
+	 * @return at most k candidates, best score first, none if k <= 0
+	 * @throws InterruptedException if interrupted while waiting for the slices
+	 * @throws ExecutionException if the scoring of a slice failed
+	 */
+	public Candidate[] identify(PackedTemplate probe, int k, ExecutorService executor)
+			throws InterruptedException, ExecutionException {
+		if (k <= 0) {
+			return new Candidate[0];
+		}
+		return searchParallel(probe, k, null, gallery.size(), executor);
+	}
+
+	/**
+	 * Identifies a probe, scoring slices of the shortlist of an index in parallel
+	 * @param probe the challenger's template
+	 * @param k number of candidates to return
+	 * @param index the index over the gallery
+	 * @param shortlist number of entries selected by the index
+	 * @param executor the executor running the slices
+	 * @return at most k candidates, best score first, none if k <= 0
+	 * @throws InterruptedException if interrupted while waiting for the slices
+	 * @throws ExecutionException if the scoring of a slice failed
+	 */
+	public Candidate[] identify(PackedTemplate probe, int k, GalleryIndex index, int shortlist, ExecutorService executor)
+			throws InterruptedException, ExecutionException {
+		if (k <= 0) {
+			return new Candidate[0];
+		}
+		int[] entries = new int[Math.max(0, Math.min(shortlist, gallery.size()))];
+		int count = index.shortlist(probe, shortlist, entries);
+		return searchParallel(probe, k, entries, count, executor);
+	}
+
+	/**
+	 * Scores slices of gallery entries in parallel
+	 * @param probe the challenger's template
+	 * @param k number of candidates to return
+	 * @param entries indexes of the entries to score, null for the whole gallery
+	 * @param size number of entries to score
+	 * @param executor the executor running the slices
+	 * @return at most k candidates, best score first
+	 */
+	private Candidate[] searchParallel(final PackedTemplate probe, final int k, final int[] entries, int size, ExecutorService executor)
+			throws InterruptedException, ExecutionException {
+		ArrayList<Future<PriorityQueue<Candidate>>> tasks = new ArrayList<Future<PriorityQueue<Candidate>>>();
+		for (int from = 0; from < size; from += SLICE_SIZE) {
+			final int start = from;
+			final int end = Math.min(size, from + SLICE_SIZE);
+			tasks.add(executor.submit(new Callable<PriorityQueue<Candidate>>() {
+				@Override
+				public PriorityQueue<Candidate> call() {
+					return search(probe, k, entries, start, end);
+				}
+			}));
+		}
+		PriorityQueue<Candidate> best = new PriorityQueue<Candidate>(Math.max(1, k + 1), WORST_FIRST);
+		for (Future<PriorityQueue<Candidate>> task : tasks) {
+			for (Candidate c : task.get()) {
+				offer(best, c, k);
+			}
+		}
+		return toSortedArray(best);
+	}
+
+	/**
+	 * Scores the probe against a range of gallery entries
+	 * @param probe the challenger's template
+	 * @param k number of candidates to keep
+	 * @param entries indexes of the entries, null for the gallery order
+	 * @param from position of the first entry
+	 * @param to position after the last entry
+	 * @return the k best candidates of the range, worst at the head
+	 */
+	private PriorityQueue<Candidate> search(PackedTemplate probe, int k, int[] entries, int from, int to) {
+		LSSMatcher matcher = new LSSMatcher(deltaTheta);
+		PriorityQueue<Candidate> best = new PriorityQueue<Candidate>(Math.max(1, k + 1), WORST_FIRST);
+		for (int p = from; p < to; p++) {
+			int i = entries == null ? p : entries[p];
+			int score = gallery.match(matcher, i, probe);
+			if (best.size() < k || score > best.peek().score) {
+				offer(best, new Candidate(i, gallery.getId(i), score), k);
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Adds a candidate to a bounded heap
+	 * @param best the heap, worst candidate at the head
+	 * @param c the candidate
+	 * @param k capacity of the heap
+	 */
+	private static void offer(PriorityQueue<Candidate> best, Candidate c, int k) {
+		if (k <= 0) {
+			return;
+		}
+		if (best.size() < k) {
+			best.add(c);
+		} else if (WORST_FIRST.compare(c, best.peek()) > 0) {
+			best.poll();
+			best.add(c);
+		}
+	}
+
+	private static Candidate[] toSortedArray(PriorityQueue<Candidate> best) {
+		Candidate[] result = best.toArray(new Candidate[best.size()]);
+		Arrays.sort(result, BEST_FIRST);
+		return result;
+	}
+}
@@ -0,0 +1,167 @@
+package biometrics;
+
+import java.util.List;
+
+/**
+ * Host-side Local Similarity Sort matcher. Computes exactly the score of
+ * monpackage.LSSMatcher on the card (same integer arithmetic, same PRECISION
+ * and NP_LOOKUP) without going through the card or its simulator, so large
+ * evaluations and pre-screening can run offline.
+ * Not thread-safe : use one instance per thread.
+ * @author Jonathan Cheseaux (jonathan.cheseaux@epfl.ch)
+ *
+ */
+public class LSSMatcher {
+
+	/** Number of pairs averaged in the global score, indexed by the smallest number of cylinders **/
+	private final static short[] NP_LOOKUP = new short[]{3,3,3,3,3,3,3,3,3,3,3,3,3,3,3,3,3,3,3,3,3,3,3,3,4,4,4,5,5,6,7,7,8,8,9,9,9,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10,10};
+
+	/** Empirical value used by the card to get rid of the absence of float values **/
+	public static final int PRECISION = 1550;
+
+	/** Largest number of pairs averaged in the global score (maximum of NP_LOOKUP) **/
+	public static final int MAX_NP = 10;
+
+	/** Default maximum directional difference (in degrees) between two matchable minutiae **/
+	public static final int DEFAULT_DELTA_THETA = 135;
+
+	/** maximum directional difference between two matchable minutiae **/
+	private int deltaTheta;
+	/** best local similarities of the current match, in descending order **/
+	private int[] top = new int[MAX_NP];
+
+	/**
+	 * Matcher using the same directional tolerance as the card
+	 */
+	public LSSMatcher() {
+		this(DEFAULT_DELTA_THETA);
+	}
+
+	/**
+	 * Initialization constructor.
+	 * @param deltaTheta the maximum directional difference (in degrees) between two minutiae
+	 *  whose corresponding cylinders are considered "matchable"
+	 */
+	public LSSMatcher(int deltaTheta) {
+		this.deltaTheta = deltaTheta;
+	}
+
+	/**
+	 * Computes the global similarity score between two templates
+	 * @param template the user's template
+	 * @param external the challenger's template
+	 * @return the score as returned by the card, PRECISION meaning maximum similarity
+	 */
+	public int match(PackedTemplate template, PackedTemplate external) {
+		if (template.getWordsPerCylinder() != external.getWordsPerCylinder()) {
+			throw new IllegalArgumentException("Templates with different cylinder sizes");
+		}
+		return match(template.getWords(), template.getNorms(), template.getDirections(), 0, template.getCylinders(),
+				external.getWords(), external.getNorms(), external.getDirections(), 0, external.getCylinders(),
+				template.getWordsPerCylinder());
+	}
+
+	/**
+	 * Computes the global similarity score between two templates stored in flat arrays,
+	 * see {@link PackedTemplate} and {@link TemplateGallery}
+	 * @param words the packed cylinders of the user's template
+	 * @param norms the cylinder norms of the user's template
+	 * @param directions the minutiae directions of the user's template
+	 * @param first index of the first cylinder of the user's template in the arrays
+	 * @param linSize2 number of cylinders of the user's template
+	 * @param external_words the packed cylinders of the challenger's template
+	 * @param external_norms the cylinder norms of the challenger's template
+	 * @param external_directions the minutiae directions of the challenger's template
+	 * @param external_first index of the first cylinder of the challenger's template in the arrays
+	 * @param linSize1 number of cylinders of the challenger's template
+	 * @param wordsPerCylinder number of 64-bit words per cylinder
+	 * @return the score as returned by the card
+	 */
+	int match(long[] words, int[] norms, short[] directions, int first, int linSize2,
+			long[] external_words, int[] external_norms, short[] external_directions, int external_first, int linSize1,
+			int wordsPerCylinder) {
+		if (linSize1 == 0 || linSize2 == 0) {
+			return 0;
+		}
+		int Z = Math.min(linSize1, linSize2);
+		if (Z >= NP_LOOKUP.length) {
+			throw new IllegalArgumentException("Templates of more than " + (NP_LOOKUP.length - 1) + " cylinders are not supported");
+		}
+		int nP = NP_LOOKUP[Z];
+		int l = 0; // number of valid entries in top
+
+		for (int i = external_first; i < external_first + linSize1; i++) {
+			short direction1 = external_directions[i];
+			int norma = external_norms[i];
+			int offset1 = i * wordsPerCylinder;
+			for (int j = first; j < first + linSize2; j++) {
+				// a pair scoring 0 cannot change the sum of the best local similarities
+				if (angularDiff(direction1, directions[j]) > deltaTheta) {
+					continue;
+				}
+				int denom = norma + norms[j];
+				if (denom == 0) {
+					continue;
+				}
+				int offset2 = j * wordsPerCylinder;
+				int distance = 0;
+				for (int w = 0; w < wordsPerCylinder; w++) {
+					distance += Long.bitCount(external_words[offset1 + w] ^ words[offset2 + w]);
+				}
+				// same truncated division as the card
+				int localSim = PRECISION - (PRECISION / denom) * distance;
+
+				int k;
+				if (l < nP) {
+					k = l++;
+				} else if (localSim > top[nP - 1]) {
+					k = nP - 1;
+				} else {
+					continue;
+				}
+				for (; k > 0 && top[k - 1] < localSim; k--) {
+					top[k] = top[k - 1];
+				}
+				top[k] = localSim;
+			}
+		}
+
+		int sum = 0;
+		for (int i = 0; i < l; i++) {
+			sum += top[i];
+		}
+		return sum / nP;
+	}
+
+	/**
+	 * Scores a challenger against a batch of templates
+	 * @param external the challenger's template
+	 * @param templates the templates to compare with
+	 * @param scores destination, one score per template
+	 */
+	public void match(PackedTemplate external, List<PackedTemplate> templates, int[] scores) {
+		for (int t = 0; t < templates.size(); t++) {
+			scores[t] = match(templates.get(t), external);
+		}
+	}
+
+	/**
+	 * Converts a card score into a similarity in [0,1], as done by the card reader
+	 * @param score the integer score
+	 * @return the normalized score
+	 */
+	public static double normalize(int score) {
+		return score / (double) PRECISION;
+	}
+
+	/**
+	 * Computes the angular difference between two directions, as the card does
+	 * @param a first direction in degrees
+	 * @param b second direction in degrees
+	 * @return the difference in [0,180]
+	 */
+	public static int angularDiff(int a, int b) {
+		int d = Math.abs(a - b) % 360;
+		return d > 180 ? 360 - d : d;
+	}
+}
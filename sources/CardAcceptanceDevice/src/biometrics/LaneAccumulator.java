@@ -0,0 +1,23 @@
+package biometrics;
+
+/**
+ * Accumulation step of the lane kernel of {@link MCCBase} : adds the weighted
+ * directional contributions of one neighbor to the nd cells of a column.
+ * Implementations must compute lanes[k] + directional[base+k]*weight with a
+ * separate multiplication and addition (no fused multiply-add), so that every
+ * implementation gives the same values as the plain Java loop.
+ * @author Jonathan Cheseaux (jonathan.cheseaux@epfl.ch)
+ *
+ */
+interface LaneAccumulator {
+
+	/**
+	 * Adds directional[base+k]*weight to lanes[k], for k in [0, count)
+	 * @param lanes the accumulated contributions of the column
+	 * @param directional the directional contributions of the minutiae, [u][k]
+	 * @param base index of the first directional contribution of the neighbor
+	 * @param weight spatial contribution of the neighbor
+	 * @param count number of lanes
+	 */
+	void accumulate(double[] lanes, double[] directional, int base, double weight, int count);
+}
@@ -2,6 +2,9 @@ package biometrics;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * This class provide methods for loading and transforming a biometric template
@@ -23,6 +26,21 @@ public class MCCBase {
 	private double sigmaS;
 	/** directional smoothing **/
 	private double sigmaD;
+	/** discretization constants, shared between the instances with the same ns, nd and r **/
+	private CylinderGeometry geometry;
+	/** spatial index over the minutiae, used for neighbor lookup **/
+	private MinutiaGrid grid;
+	/** sigmoid parameters of the cell values, see {@link #sigmoid(double, double, double)} **/
+	static final double MU_PSI = 0.01;
+	static final double TAU_PSI = 400;
+	/** tabulated contributions, null when the exact formulas are used **/
+	private ContributionTable table;
+	/** scratch arrays of the sequential computations **/
+	private Scratch scratch;
+	/** true to compute the cells with the lane kernel, see {@link #useLaneKernel(boolean)} **/
+	private boolean laneKernel;
+	/** accumulation of the lane kernel, null for the plain Java loop, see {@link #useVectorKernel()} **/
+	private LaneAccumulator accumulator;
 	
 	/**
 	 * By default constructor, initializes all parameters to 0. except log file.
@@ -34,6 +52,9 @@ public class MCCBase {
 		this.minutiae = null;
 		this.sigmaS = 0;
 		this.sigmaD = 0;
+		this.grid = null;
+		this.geometry = null;
+		this.scratch = null;
 	}
 	/**
 	 * Initialization constructor. To be called when computing a cylinder set from a minutiae set
@@ -56,9 +77,32 @@ public class MCCBase {
 		this.minutiae = minutiae;
 		this.sigmaS = sigmaS;
 		this.sigmaD = sigmaD;
+		this.grid = new MinutiaGrid(minutiae, 3*sigmaS);
+		this.geometry = CylinderGeometry.get(ns, nd, r);
+		this.scratch = new Scratch();
 
 	}
 	
+	/**
+	 * Switches computeTemplate to tabulated spatial and directional contributions
+	 * instead of evaluating the Gaussians for every neighbor and every cell.
+	 * See {@link ContributionTable#getCellErrorBound()} for the accuracy loss.
+	 * @param spatialSteps number of sampling intervals over [0, 3*sigmaS]
+	 * @param directionalSteps number of sampling intervals over [0, PI]
+	 * @return the lookup tables now in use
+	 */
+	public ContributionTable useLookupTables(int spatialSteps, int directionalSteps){
+		this.table = new ContributionTable(this, this.nd, this.sigmaS, this.sigmaD, spatialSteps, directionalSteps);
+		return this.table;
+	}
+	
+	/**
+	 * Switches computeTemplate back to the exact contributions (default)
+	 */
+	public void useExactContributions(){
+		this.table = null;
+	}
+	
 	/**
 	 * Computes the spatial contribution of a minutia mt to a cylinder centered at pX, pY
 	 * @param mt neighboring minutia
@@ -68,9 +112,18 @@ public class MCCBase {
 	 */
 	public double cmS(Minutia mt, double pX, double pY){
 		double t = ds(mt, pX, pY);
+		return cmS(t);
+
+	}
+	
+	/**
+	 * Computes the spatial contribution of a minutia lying at distance t from the cell center
+	 * @param t Euclidean distance between the neighboring minutia and the cell center
+	 * @return spatial contribution of the minutia on current cell
+	 */
+	public double cmS(double t){
 		double val = (1/(this.sigmaS*Math.sqrt(2*Math.PI)))*gaus(t, this.sigmaS);
 		return val;
-
 	}
 	
 	/**
@@ -114,6 +167,101 @@ public class MCCBase {
 		return linTemplateQuant;
 	}
 	
+	/**
+	 * Same transformation as {@link #transform(ArrayList, ArrayList, int, double, double)}, with
+	 * the key given as a primitive array (see {@link #compileKey(ArrayList)}). The bits are shifted
+	 * directly into the output bytes, with the same +128 bias as utils.Utils.bitsArrayToByte.
+	 * @param linTemplate the original template
+	 * @param H the transformation key
+	 * @param flag 0 for the double sum-square-modulo transformation, 1 for the binarized version
+	 * @return transformed diversified template
+	 */
+	public byte[] transform(ArrayList<double[]> linTemplate, int[] H, int flag, double A, double n){
+		byte[] linTemplateQuant = new byte[linTemplate.size() * 1024 / 8]; 
+		int k = 0;
+		int index = 0;
+		int acc = 0;
+		for(int i = 0; i < linTemplate.size(); i++){
+			double[] currentCyl = linTemplate.get(i);
+			for(int j = 0; j < currentCyl.length; j += 2){
+				// double sum-square-modulo transformation
+				double d1 = (A*(currentCyl[H[j]]+currentCyl[H[j+1]]));
+				double c1 = (d1*d1)%n; // ciphertext
+
+				if(flag == 1){
+					acc = (acc << 1) | (c1 > 100000 ? 1 : 0);
+					if (++index == 8) {
+						linTemplateQuant[k++] = (byte) (acc + 128);
+						acc = 0;
+						index = 0;
+					}
+				}
+			}
+		}
+		return linTemplateQuant;
+	}
+
+	/**
+	 * Same transformation as {@link #transform(ArrayList, int[], int, double, double)}, reading
+	 * the cylinders from a block produced by {@link #computeTemplate(double[])} and writing into
+	 * a caller-provided array. Does not allocate.
+	 * @param block the original template, laid out as [cylinder][k][j][i]
+	 * @param cylinders number of cylinders in block
+	 * @param H the transformation key
+	 * @param flag 0 for the double sum-square-modulo transformation, 1 for the binarized version
+	 * @param dest destination of the transformed template, at least getTransformedSize(cylinders) long
+	 * @return the number of bytes written
+	 */
+	public int transform(double[] block, int cylinders, int[] H, int flag, double A, double n, byte[] dest){
+		int cylSize = getCylinderSize();
+		int size = getTransformedSize(cylinders);
+		Arrays.fill(dest, 0, size, (byte) 0);
+		int k = 0;
+		int index = 0;
+		int acc = 0;
+		for(int i = 0; i < cylinders; i++){
+			int offset = i*cylSize;
+			for(int j = 0; j < cylSize; j += 2){
+				// double sum-square-modulo transformation
+				double d1 = (A*(block[offset+H[j]]+block[offset+H[j+1]]));
+				double c1 = (d1*d1)%n; // ciphertext
+
+				if(flag == 1){
+					acc = (acc << 1) | (c1 > 100000 ? 1 : 0);
+					if (++index == 8) {
+						dest[k++] = (byte) (acc + 128);
+						acc = 0;
+						index = 0;
+					}
+				}
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Converts a transformation key to the primitive form used by the
+	 * allocation-free transformations
+	 * @param H the transformation key
+	 * @return the key as an int array
+	 */
+	public static int[] compileKey(ArrayList<Integer> H){
+		int[] key = new int[H.size()];
+		for(int i = 0; i < key.length; i++){
+			key[i] = H.get(i);
+		}
+		return key;
+	}
+
+	/**
+	 * Returns the size of a transformed template
+	 * @param cylinders number of cylinders of the template
+	 * @return the number of bytes of the transformed template
+	 */
+	public int getTransformedSize(int cylinders){
+		return cylinders * getCylinderSize() / 16;
+	}
+	
 	/**
 	 * Euclidean distance between minutia m and point (pX, pY)
 	 * @param m central minutia
@@ -136,6 +284,16 @@ public class MCCBase {
 	public double cmD(Minutia m, Minutia mt, double dphiK){
 		double diff1 = angularDiff(m.getDir(), mt.getDir());
 		double diff = angularDiff(dphiK, diff1);
+		return cmD(diff);
+	}
+	
+	/**
+	 * Computes the directional contribution of a neighbor whose relative direction
+	 * differs by diff from the direction of the current cell
+	 * @param diff angular difference between the cell direction and the relative neighbor direction
+	 * @return directional contribution of neighbor on current cell
+	 */
+	public double cmD(double diff){
 		double deltaD = 2*Math.PI/(double)this.nd;
 		double val = 0;
 		diff = Math.abs(diff);
@@ -177,68 +335,322 @@ public class MCCBase {
 	}
 
 	/**
-	 * Compute the untransformed template from the fingerprint impression
+	 * Compute the untransformed template from the fingerprint impression.
+	 * Uses its own scratch arrays, so it can be called concurrently on the same instance.
 	 * @return A list of double array
 	 */
 	public ArrayList<double[]> computeTemplate(){
 		// cylFile is the file in which to write the computed cylinders
 		ArrayList<double[]> result = new ArrayList<double[]>();
+		Scratch scratch = new Scratch();
 
-		double deltaD = 2*Math.PI/((double)(this.nd));
-		double deltaS = 2*(double)this.r/(double)this.ns;
-		double mu = 0.01;
-		double tau = 400;
 		// loop over minutiae
 		for(int f = 0; f < this.minutiae.size(); f++){
-			Minutia m = this.minutiae.get(f);
-			double x = (double) m.getX();
-			double y = (double) m.getY();
-			double t = (double) m.getDir();
-
-			double[] linCylD = new double[this.ns*this.ns*this.nd]; // current cylinder in its linearized form
-
-			double[] dphi = new double[this.nd];
-
-			// loop over i and j to compute p_ij
-			for(int i = 0; i < this.ns; i++){
-				for(int j = 0; j < this.ns; j++){
-					double s_t = Math.sin(t);
-					double c_t = Math.cos(t);
-					double ind = ((double)this.ns+1)/2;
-					double di = (double)i+1;
-					double dj = (double)j+1;
-					double pX_ij = x + deltaS*(c_t*(di-ind)+s_t*(dj-ind));
-					double pY_ij = y + deltaS*(-1*s_t*(di-ind)+c_t*(dj-ind));
-
-					ArrayList<Minutia> neighbors = new ArrayList<Minutia>();
-					for(int nt = 0; nt < this.minutiae.size(); nt++){
-						Minutia mt = this.minutiae.get(nt);	
-						if((f != nt)&&(ds(mt, pX_ij, pY_ij) <= 3*sigmaS)){
-							neighbors.add(mt);
-						}
-					}
-					for(int k = 0; k < this.nd; k++){
-						dphi[k]= -1*Math.PI+ ((double)k+0.5)*deltaD;
-						int indice = (int)(k*ns*ns+j*ns+i+1)-1;	
-						linCylD[indice] = 0;
-						for(int u = 0; u< neighbors.size(); u++){
-							double cmsVal = cmS(neighbors.get(u), pX_ij, pY_ij);
-							double cmdVal = cmD(m, neighbors.get(u), dphi[k]);
-
-							linCylD[indice] += cmdVal*cmsVal;	
-
-
-						} // end loop over neighbors
-						linCylD[indice] = sigmoid(linCylD[indice], mu, tau);
-//						System.out.println(linCylD[indice]);
-					} // end loop over k
-				} // end loop over j
-			} // end loop over i
+			double[] linCylD = new double[getCylinderSize()]; // current cylinder in its linearized form
+			computeCylinder(f, scratch, linCylD, 0);
 			result.add(linCylD);
 		}
 		return result;
 	}
+
+	/**
+	 * Compute the untransformed template from the fingerprint impression, each cylinder
+	 * being computed as a separate task of the given executor. The cylinders are written
+	 * in preallocated slots, so the result is identical to {@link #computeTemplate()}.
+	 * @param executor the executor (e.g. a ForkJoinPool) running the cylinder computations
+	 * @return A list of double array
+	 * @throws InterruptedException if the calling thread is interrupted while waiting
+	 * @throws ExecutionException if the computation of a cylinder failed
+	 */
+	public ArrayList<double[]> computeTemplate(ExecutorService executor) throws InterruptedException, ExecutionException{
+		final double[][] slots = new double[this.minutiae.size()][];
+		ArrayList<Future<?>> tasks = new ArrayList<Future<?>>(slots.length);
+		for(int f = 0; f < slots.length; f++){
+			final int index = f;
+			tasks.add(executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					double[] linCylD = new double[getCylinderSize()];
+					computeCylinder(index, new Scratch(), linCylD, 0);
+					slots[index] = linCylD;
+				}
+			}));
+		}
+		for(Future<?> task : tasks){
+			task.get();
+		}
+		return new ArrayList<double[]>(Arrays.asList(slots));
+	}
+
+	/**
+	 * Compute the untransformed template in one contiguous block laid out as
+	 * [cylinder][k][j][i], i.e. the linearized cylinders one after the other
+	 * @return a block of getCylinderSize() values per minutia
+	 */
+	public double[] computeFlatTemplate(){
+		double[] block = new double[this.minutiae.size()*getCylinderSize()];
+		computeTemplate(block);
+		return block;
+	}
+
+	/**
+	 * Compute the untransformed template into a caller-provided block laid out as
+	 * [cylinder][k][j][i]. Does not allocate, so the same block can be reused
+	 * from one template to the next. Not to be called concurrently on the same instance.
+	 * @param block destination, at least getCylinderSize() values per minutia
+	 * @return the number of cylinders written
+	 */
+	public int computeTemplate(double[] block){
+		int cylSize = getCylinderSize();
+		if(block.length < this.minutiae.size()*cylSize){
+			throw new IllegalArgumentException("Template block too small : " + block.length + " < " + this.minutiae.size()*cylSize);
+		}
+		for(int f = 0; f < this.minutiae.size(); f++){
+			computeCylinder(f, this.scratch, block, f*cylSize);
+		}
+		return this.minutiae.size();
+	}
+
+	/**
+	 * Compute the cylinder centered on the f-th minutia into a caller-provided array.
+	 * Not to be called concurrently on the same instance.
+	 * @param f index of the central minutia
+	 * @param linCylD destination, at least getCylinderSize() long
+	 */
+	void computeCylinder(int f, double[] linCylD){
+		computeCylinder(f, this.scratch, linCylD, 0);
+	}
+
+	/**
+	 * Returns the number of minutiae, i.e. the number of cylinders of the template
+	 * @return the number of minutiae of the fingerprint
+	 */
+	public int getMinutiaeCount(){
+		return this.minutiae.size();
+	}
+
+	/**
+	 * Returns the number of cells of a cylinder
+	 * @return ns*ns*nd
+	 */
+	public int getCylinderSize(){
+		return this.ns*this.ns*this.nd;
+	}
+
+	/**
+	 * Compute the cylinder centered on the f-th minutia
+	 * @param f index of the central minutia
+	 * @param scratch scratch arrays of the calling thread
+	 * @param linCylD destination of the cylinder in its linearized form
+	 * @param offset index of the first cell of the cylinder in linCylD
+	 */
+	private void computeCylinder(int f, Scratch scratch, double[] linCylD, int offset){
+		if(this.laneKernel){
+			computeCylinderLanes(f, scratch, linCylD, offset);
+		}else{
+			computeCylinderScalar(f, scratch.candidates, linCylD, offset);
+		}
+	}
+
+	/**
+	 * Compute the cylinder centered on the f-th minutia, one cell and one neighbor at a time
+	 * @param f index of the central minutia
+	 * @param candidates scratch array for the neighbor lookup, at least as long as the minutiae list
+	 * @param linCylD destination of the cylinder in its linearized form
+	 * @param offset index of the first cell of the cylinder in linCylD
+	 */
+	private void computeCylinderScalar(int f, int[] candidates, double[] linCylD, int offset){
+		CylinderGeometry g = this.geometry;
+		double deltaS = g.getDeltaS();
+		double mu = MU_PSI;
+		double tau = TAU_PSI;
+		Minutia m = this.minutiae.get(f);
+		double x = (double) m.getX();
+		double y = (double) m.getY();
+		double t = (double) m.getDir();
+		double s_t = Math.sin(t);
+		double c_t = Math.cos(t);
+
+		// loop over i and j to compute p_ij
+		for(int i = 0; i < this.ns; i++){
+			double oi = g.getOffset(i);
+			for(int j = 0; j < this.ns; j++){
+				double oj = g.getOffset(j);
+				double pX_ij = x + deltaS*(c_t*oi+s_t*oj);
+				double pY_ij = y + deltaS*(-1*s_t*oi+c_t*oj);
+
+				// only the minutiae of the grid cells around p_ij can be within 3*sigmaS,
+				// the actual neighbors are compacted at the beginning of candidates
+				int candidateCount = this.grid.query(pX_ij, pY_ij, 3*sigmaS, candidates);
+				int neighbors = 0;
+				for(int c = 0; c < candidateCount; c++){
+					int nt = candidates[c];
+					Minutia mt = this.minutiae.get(nt);	
+					if((f != nt)&&(ds(mt, pX_ij, pY_ij) <= 3*sigmaS)){
+						candidates[neighbors++] = nt;
+					}
+				}
+				for(int k = 0; k < this.nd; k++){
+					double dphiK = g.getDphi(k);
+					int indice = offset + k*ns*ns+j*ns+i;	
+					linCylD[indice] = 0;
+					for(int u = 0; u< neighbors; u++){
+						Minutia mt = this.minutiae.get(candidates[u]);
+						double cmsVal;
+						double cmdVal;
+						if(this.table == null){
+							cmsVal = cmS(mt, pX_ij, pY_ij);
+							cmdVal = cmD(m, mt, dphiK);
+						}else{
+							cmsVal = this.table.cmS(ds(mt, pX_ij, pY_ij));
+							cmdVal = this.table.cmD(angularDiff(dphiK, angularDiff(t, mt.getDir())));
+						}
+
+						linCylD[indice] += cmdVal*cmsVal;	
+
+
+					} // end loop over neighbors
+					linCylD[indice] = sigmoid(linCylD[indice], mu, tau);
+//					System.out.println(linCylD[indice]);
+				} // end loop over k
+			} // end loop over j
+		} // end loop over i
+	}
 	
+	/**
+	 * Compute the cylinder centered on the f-th minutia with the lane kernel. The directional
+	 * contribution of a neighbor only depends on its relative direction and on k, so it is
+	 * computed once per cylinder for the nd directional cells, and the spatial contribution
+	 * once per (i, j) cell instead of once per k. The nd cells of a column are then
+	 * accumulated as independent lanes (acc[k] += cmD[u][k]*cmS[u]), which the JIT can map
+	 * to SIMD registers, or explicitly with the Vector API (see {@link #useVectorKernel()}). The accumulation order over the neighbors is unchanged, so the
+	 * result is bit-identical to the scalar kernel.
+	 * @param f index of the central minutia
+	 * @param scratch scratch arrays of the calling thread
+	 * @param linCylD destination of the cylinder in its linearized form
+	 * @param offset index of the first cell of the cylinder in linCylD
+	 */
+	private void computeCylinderLanes(int f, Scratch scratch, double[] linCylD, int offset){
+		CylinderGeometry g = this.geometry;
+		double deltaS = g.getDeltaS();
+		double mu = MU_PSI;
+		double tau = TAU_PSI;
+		Minutia m = this.minutiae.get(f);
+		double x = (double) m.getX();
+		double y = (double) m.getY();
+		double t = (double) m.getDir();
+		double s_t = Math.sin(t);
+		double c_t = Math.cos(t);
+		int[] candidates = scratch.candidates;
+		double[] directional = scratch.directional;
+		double[] lanes = scratch.lanes;
+
+		// directional contributions of every other minutia, [u][k]
+		for(int u = 0; u < this.minutiae.size(); u++){
+			if(u == f){
+				continue;
+			}
+			Minutia mt = this.minutiae.get(u);
+			for(int k = 0; k < this.nd; k++){
+				double dphiK = g.getDphi(k);
+				if(this.table == null){
+					directional[u*this.nd+k] = cmD(m, mt, dphiK);
+				}else{
+					directional[u*this.nd+k] = this.table.cmD(angularDiff(dphiK, angularDiff(t, mt.getDir())));
+				}
+			}
+		}
+
+		// loop over i and j to compute p_ij
+		for(int i = 0; i < this.ns; i++){
+			double oi = g.getOffset(i);
+			for(int j = 0; j < this.ns; j++){
+				double oj = g.getOffset(j);
+				double pX_ij = x + deltaS*(c_t*oi+s_t*oj);
+				double pY_ij = y + deltaS*(-1*s_t*oi+c_t*oj);
+
+				for(int k = 0; k < this.nd; k++){
+					lanes[k] = 0;
+				}
+				int candidateCount = this.grid.query(pX_ij, pY_ij, 3*sigmaS, candidates);
+				for(int c = 0; c < candidateCount; c++){
+					int nt = candidates[c];
+					Minutia mt = this.minutiae.get(nt);
+					double dist = ds(mt, pX_ij, pY_ij);
+					if((f != nt)&&(dist <= 3*sigmaS)){
+						double cmsVal = this.table == null ? cmS(dist) : this.table.cmS(dist);
+						int base = nt*this.nd;
+						if(this.accumulator != null){
+							this.accumulator.accumulate(lanes, directional, base, cmsVal, this.nd);
+						}else{
+							for(int k = 0; k < this.nd; k++){
+								lanes[k] += directional[base+k]*cmsVal;
+							}
+						}
+					}
+				}
+				for(int k = 0; k < this.nd; k++){
+					linCylD[offset + k*ns*ns+j*ns+i] = sigmoid(lanes[k], mu, tau);
+				}
+			} // end loop over j
+		} // end loop over i
+	}
+
+	/**
+	 * Switches the cylinder computations to the lane kernel (see computeCylinderLanes), which
+	 * produces the same values as the default scalar kernel with far fewer exponentials
+	 * @param enabled true for the lane kernel, false for the scalar kernel
+	 */
+	public void useLaneKernel(boolean enabled){
+		this.laneKernel = enabled;
+		this.accumulator = null;
+	}
+
+	/**
+	 * Switches the cylinder computations to the lane kernel, with the columns accumulated by
+	 * the Vector API (see VectorLaneAccumulator). The Vector API is an incubator module : when
+	 * it cannot be loaded, the lane kernel keeps its plain Java accumulation, which gives the
+	 * same values.
+	 * @return true if the Vector API is used, false if the plain accumulation is kept
+	 */
+	public boolean useVectorKernel(){
+		this.laneKernel = true;
+		this.accumulator = loadVectorAccumulator(this.nd);
+		return this.accumulator != null;
+	}
+
+	/**
+	 * Loads the Vector API accumulation by name, so that this class does not depend on the
+	 * incubator module
+	 * @param count number of lanes of a column
+	 * @return the accumulation, null if the Vector API is not available
+	 */
+	private static LaneAccumulator loadVectorAccumulator(int count){
+		try{
+			LaneAccumulator accumulator = (LaneAccumulator) Class.forName("biometrics.VectorLaneAccumulator")
+					.getDeclaredConstructor().newInstance();
+			// the incubator classes are only linked on first use
+			accumulator.accumulate(new double[count], new double[count], 0, 1, count);
+			return accumulator;
+		}catch(ReflectiveOperationException e){
+			return null;
+		}catch(LinkageError e){
+			return null;
+		}
+	}
+
+	/**
+	 * Scratch arrays of a cylinder computation, one set per computing thread
+	 */
+	private class Scratch {
+		/** neighbor lookup results **/
+		int[] candidates = new int[minutiae.size()];
+		/** directional contributions of each minutia, [u][k] **/
+		double[] directional = new double[minutiae.size()*nd];
+		/** accumulated contributions of the nd cells of the current (i, j) column **/
+		double[] lanes = new double[nd];
+	}
+
 	/**
 	 * Computes the sigmoid function according to (5) in the main paper.
 	 * @param nu
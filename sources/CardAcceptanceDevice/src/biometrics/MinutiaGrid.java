@@ -0,0 +1,124 @@
+package biometrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Uniform grid over the minutiae of a fingerprint, used to retrieve the
+ * minutiae lying close to a given point without scanning the whole set.
+ * Minutiae are bucketed by their (x, y) position; the indexes stored in
+ * each bucket are kept in ascending order so that a query returns the
+ * candidates in the same order as a linear scan would.
+ * @author Jonathan Cheseaux (jonathan.cheseaux@epfl.ch)
+ *
+ */
+public class MinutiaGrid {
+
+	/** width (and height) of a grid cell in pixels **/
+	private double cellSize;
+	/** horizontal coordinate of the grid origin **/
+	private int originX;
+	/** vertical coordinate of the grid origin **/
+	private int originY;
+	/** number of cells in the horizontal dimension **/
+	private int cols;
+	/** number of cells in the vertical dimension **/
+	private int rows;
+	/** offset of the first minutia index of each cell in cellItems (cols*rows+1 entries) **/
+	private int[] cellStart;
+	/** minutiae indexes grouped by cell **/
+	private int[] cellItems;
+
+	/**
+	 * Builds the grid over the given minutiae
+	 * @param minutiae list of minutiae extracted from fingerprint
+	 * @param cellSize width of a grid cell, typically the neighborhood radius
+	 */
+	public MinutiaGrid(ArrayList<Minutia> minutiae, double cellSize) {
+		this.cellSize = cellSize > 0 ? cellSize : 1;
+		int size = minutiae.size();
+		this.cellItems = new int[size];
+		if (size == 0) {
+			this.cols = 0;
+			this.rows = 0;
+			this.cellStart = new int[1];
+			return;
+		}
+
+		int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+		int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+		for (Minutia m : minutiae) {
+			minX = Math.min(minX, m.getX());
+			minY = Math.min(minY, m.getY());
+			maxX = Math.max(maxX, m.getX());
+			maxY = Math.max(maxY, m.getY());
+		}
+		this.originX = minX;
+		this.originY = minY;
+		this.cols = (int) ((maxX - minX) / this.cellSize) + 1;
+		this.rows = (int) ((maxY - minY) / this.cellSize) + 1;
+
+		// counting sort of the minutiae indexes by cell, stable so each bucket stays ascending
+		int[] cellOf = new int[size];
+		this.cellStart = new int[cols * rows + 1];
+		for (int i = 0; i < size; i++) {
+			Minutia m = minutiae.get(i);
+			int cx = (int) ((m.getX() - originX) / this.cellSize);
+			int cy = (int) ((m.getY() - originY) / this.cellSize);
+			cellOf[i] = cy * cols + cx;
+			cellStart[cellOf[i] + 1]++;
+		}
+		for (int c = 0; c < cols * rows; c++) {
+			cellStart[c + 1] += cellStart[c];
+		}
+		int[] fill = Arrays.copyOf(cellStart, cols * rows);
+		for (int i = 0; i < size; i++) {
+			cellItems[fill[cellOf[i]]++] = i;
+		}
+	}
+
+	/**
+	 * Returns the maximum number of candidates a query can return
+	 * @return the number of indexed minutiae
+	 */
+	public int size() {
+		return cellItems.length;
+	}
+
+	/**
+	 * Gathers the indexes of the minutiae whose cell intersects the square
+	 * of half-width radius centered at (pX, pY). The candidates are a superset
+	 * of the minutiae lying within radius; the caller still has to check the distance.
+	 * @param pX horizontal coordinate of the query point
+	 * @param pY vertical coordinate of the query point
+	 * @param radius search radius
+	 * @param out destination array, at least {@link #size()} long
+	 * @return the number of candidates written in out, in ascending index order
+	 */
+	public int query(double pX, double pY, double radius, int[] out) {
+		double fx0 = Math.floor((pX - radius - originX) / cellSize);
+		double fx1 = Math.floor((pX + radius - originX) / cellSize);
+		double fy0 = Math.floor((pY - radius - originY) / cellSize);
+		double fy1 = Math.floor((pY + radius - originY) / cellSize);
+		if (fx1 < 0 || fy1 < 0 || fx0 >= cols || fy0 >= rows) {
+			return 0;
+		}
+		int cx0 = (int) Math.max(fx0, 0);
+		int cx1 = (int) Math.min(fx1, cols - 1);
+		int cy0 = (int) Math.max(fy0, 0);
+		int cy1 = (int) Math.min(fy1, rows - 1);
+
+		int count = 0;
+		for (int cy = cy0; cy <= cy1; cy++) {
+			for (int cx = cx0; cx <= cx1; cx++) {
+				int c = cy * cols + cx;
+				for (int p = cellStart[c]; p < cellStart[c + 1]; p++) {
+					out[count++] = cellItems[p];
+				}
+			}
+		}
+		// several buckets were visited, restore the global minutiae order
+		Arrays.sort(out, 0, count);
+		return count;
+	}
+}
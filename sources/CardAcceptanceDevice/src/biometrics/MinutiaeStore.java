@@ -0,0 +1,224 @@
+package biometrics;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import utils.DirectBufferPool;
+
+/**
+ * In-memory store of the minutiae of many finger impressions. Every file is
+ * parsed once, through pooled direct buffers, and its selected minutiae are
+ * appended to columns (x, y, direction, quality) shared by all the impressions.
+ * The minutiae and directions of an impression are returned in the same order
+ * as {@link ReadMinutiaFromISOFile#getMinutiae()} and {@link ReadMinutiaFromISOFile#getMinutiaeDir()}.
+ * Thread-safe.
+ * @author Jonathan Cheseaux (jonathan.cheseaux@epfl.ch)
+ *
+ */
+public class MinutiaeStore {
+
+	/** pool of the buffers the files are read into **/
+	private DirectBufferPool pool;
+	/** maximum number of minutiae kept per impression **/
+	private int maxMinutiae;
+
+	/** files of the impressions **/
+	private ArrayList<File> files = new ArrayList<File>();
+	/** index of each impression, by absolute path **/
+	private HashMap<String, Integer> indexes = new HashMap<String, Integer>();
+	/** offset of the first minutia of each impression in the columns (size()+1 entries) **/
+	private int[] offsets = new int[16];
+
+	/** horizontal coordinates **/
+	private short[] x = new short[256];
+	/** vertical coordinates **/
+	private short[] y = new short[256];
+	/** directions in units of 360/256 degrees **/
+	private short[] angle = new short[256];
+	/** qualities **/
+	private short[] quality = new short[256];
+
+	/**
+	 * Store reading through the shared buffer pool and keeping
+	 * {@link ReadMinutiaFromISOFile#DEFAULT_MAX_MINUTIAE} minutiae per impression
+	 */
+	public MinutiaeStore() {
+		this(DirectBufferPool.getShared(), ReadMinutiaFromISOFile.DEFAULT_MAX_MINUTIAE);
+	}
+
+	/**
+	 * Initialization constructor.
+	 * @param pool pool of the buffers the files are read into
+	 * @param maxMinutiae maximum number of minutiae kept per impression, the ones of best quality
+	 */
+	public MinutiaeStore(DirectBufferPool pool, int maxMinutiae) {
+		this.pool = pool;
+		this.maxMinutiae = maxMinutiae;
+	}
+
+	/**
+	 * Loads every impression file of a folder and its subfolders
+	 * (same selection as utils.ScoreTest.walk)
+	 * @param path the path to the folder
+	 * @return the number of impressions in the store
+	 * @throws IOException if a file cannot be read or is not a valid record
+	 */
+	public int addDirectory(String path) throws IOException {
+		File[] list = new File(path).listFiles();
+		if (list == null) {
+			throw new IOException("Not a readable folder : " + path);
+		}
+		Arrays.sort(list);
+		for (File f : list) {
+			if (f.isDirectory()) {
+				addDirectory(f.getAbsolutePath());
+			} else if (f.length() > 42 && f.length() < 50000) {
+				add(f);
+			}
+		}
+		return size();
+	}
+
+	/**
+	 * Loads impression files
+	 * @param list the .ist files
+	 * @throws IOException if a file cannot be read or is not a valid record
+	 */
+	public void addAll(List<File> list) throws IOException {
+		for (File f : list) {
+			add(f);
+		}
+	}
+
+	/**
+	 * Loads an impression file, unless it is already in the store
+	 * @param file the .ist file
+	 * @return the index of the impression in the store
+	 * @throws IOException if the file cannot be read or is not a valid record
+	 */
+	public int add(File file) throws IOException {
+		String key = file.getAbsolutePath();
+		synchronized (this) {
+			Integer index = indexes.get(key);
+			if (index != null) {
+				return index;
+			}
+		}
+
+		PackedMinutiae packed;
+		if (file.length() > pool.getBufferSize()) {
+			packed = ISOMinutiaParser.parse(file);
+		} else {
+			ByteBuffer buffer = pool.acquire();
+			try {
+				FileInputStream in = new FileInputStream(file);
+				try {
+					FileChannel channel = in.getChannel();
+					while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+						// read until end of file
+					}
+				} finally {
+					in.close();
+				}
+				buffer.flip();
+				packed = ISOMinutiaParser.parse(buffer);
+			} finally {
+				pool.release(buffer);
+			}
+		}
+		return append(key, file, packed);
+	}
+
+	/**
+	 * Appends the selected minutiae of a parsed impression to the columns
+	 * @param key absolute path of the file
+	 * @param file the .ist file
+	 * @param packed the parsed minutiae
+	 * @return the index of the impression in the store
+	 */
+	private synchronized int append(String key, File file, PackedMinutiae packed) {
+		Integer existing = indexes.get(key);
+		if (existing != null) {
+			return existing; // loaded concurrently
+		}
+		int[] selected = packed.selectBest(maxMinutiae);
+		int index = files.size();
+		int start = offsets[index];
+		int end = start + selected.length;
+		if (index + 2 > offsets.length) {
+			offsets = Arrays.copyOf(offsets, offsets.length * 2);
+		}
+		if (end > x.length) {
+			int capacity = Math.max(end, x.length * 2);
+			x = Arrays.copyOf(x, capacity);
+			y = Arrays.copyOf(y, capacity);
+			angle = Arrays.copyOf(angle, capacity);
+			quality = Arrays.copyOf(quality, capacity);
+		}
+		for (int i = 0; i < selected.length; i++) {
+			x[start + i] = (short) packed.getX(selected[i]);
+			y[start + i] = (short) packed.getY(selected[i]);
+			angle[start + i] = (short) packed.getAngle(selected[i]);
+			quality[start + i] = (short) packed.getQ(selected[i]);
+		}
+		offsets[index + 1] = end;
+		files.add(file);
+		indexes.put(key, index);
+		return index;
+	}
+
+	/**
+	 * Returns the number of impressions in the store
+	 * @return the number of impressions
+	 */
+	public synchronized int size() {
+		return files.size();
+	}
+
+	/**
+	 * Returns the index of an impression
+	 * @param file the .ist file
+	 * @return the index of the impression, -1 if it is not in the store
+	 */
+	public synchronized int indexOf(File file) {
+		Integer index = indexes.get(file.getAbsolutePath());
+		return index == null ? -1 : index;
+	}
+
+	public synchronized File getFile(int index) {
+		return files.get(index);
+	}
+
+	/**
+	 * Returns the minutiae of an impression
+	 * @param index index of the impression
+	 * @return a new list of {@link Minutia}, by ascending quality
+	 */
+	public synchronized ArrayList<Minutia> getMinutiae(int index) {
+		ArrayList<Minutia> list = new ArrayList<Minutia>(offsets[index + 1] - offsets[index]);
+		for (int i = offsets[index]; i < offsets[index + 1]; i++) {
+			list.add(new Minutia(x[i], y[i], angle[i]*2* Math.PI/256, quality[i]));
+		}
+		return list;
+	}
+
+	/**
+	 * Returns the minutiae directions of an impression, as sent to the card
+	 * @param index index of the impression
+	 * @return a new array of directions in degrees, in the same order as getMinutiae
+	 */
+	public synchronized short[] getMinutiaeDir(int index) {
+		short[] tab = new short[offsets[index + 1] - offsets[index]];
+		for (int i = 0; i < tab.length; i++) {
+			tab[i] = (short) (angle[offsets[index] + i]*2* Math.PI/256 * 180 / Math.PI);
+		}
+		return tab;
+	}
+}
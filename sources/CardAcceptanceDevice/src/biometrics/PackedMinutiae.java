@@ -0,0 +1,180 @@
+package biometrics;
+
+import java.util.ArrayList;
+
+/**
+ * Compact representation of the minutiae of an ISO/IEC 19794-2 record :
+ * one primitive array per field, in the order of the record
+ * @author Jonathan Cheseaux (jonathan.cheseaux@epfl.ch)
+ *
+ */
+public class PackedMinutiae {
+
+	/** number of minutiae **/
+	private int size;
+	/** horizontal coordinates in pixels **/
+	private short[] x;
+	/** vertical coordinates in pixels **/
+	private short[] y;
+	/** directions as stored in the record, in units of 360/256 degrees **/
+	private short[] angle;
+	/** qualities **/
+	private short[] quality;
+
+	/**
+	 * Initialization constructor.
+	 * @param capacity maximum number of minutiae
+	 */
+	public PackedMinutiae(int capacity) {
+		this.x = new short[capacity];
+		this.y = new short[capacity];
+		this.angle = new short[capacity];
+		this.quality = new short[capacity];
+	}
+
+	/**
+	 * Appends a minutia
+	 * @param x horizontal coordinate in pixels
+	 * @param y vertical coordinate in pixels
+	 * @param angle direction in units of 360/256 degrees
+	 * @param quality quality of the minutia
+	 */
+	void add(int x, int y, int angle, int quality) {
+		this.x[size] = (short) x;
+		this.y[size] = (short) y;
+		this.angle[size] = (short) angle;
+		this.quality[size] = (short) quality;
+		size++;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getX(int i) {
+		return x[i];
+	}
+
+	public int getY(int i) {
+		return y[i];
+	}
+
+	/**
+	 * Returns the raw direction of a minutia
+	 * @param i index of the minutia
+	 * @return direction in units of 360/256 degrees
+	 */
+	public int getAngle(int i) {
+		return angle[i];
+	}
+
+	public int getQ(int i) {
+		return quality[i];
+	}
+
+	/**
+	 * Returns the direction of a minutia
+	 * @param i index of the minutia
+	 * @return direction in rad
+	 */
+	public double getDir(int i) {
+		return angle[i]*2* Math.PI/256;
+	}
+
+	/**
+	 * Returns the direction of a minutia as sent to the card
+	 * @param i index of the minutia
+	 * @return direction in degrees, truncated like {@link Minutia#getDegreeDir()}
+	 */
+	public short getDegreeDir(int i) {
+		return (short) (getDir(i) * 180 / Math.PI);
+	}
+
+	/**
+	 * Builds the {@link Minutia} object of a minutia
+	 * @param i index of the minutia
+	 * @return the minutia
+	 */
+	public Minutia getMinutia(int i) {
+		return new Minutia(x[i], y[i], getDir(i), quality[i]);
+	}
+
+	/**
+	 * Selects the k minutiae of best quality with a bounded min-heap, in O(size*log(k)).
+	 * Among minutiae of equal quality, the first ones of the record are preferred.
+	 * @param k maximum number of minutiae to keep
+	 * @return the indexes of the selected minutiae, by ascending quality then record order
+	 */
+	public int[] selectBest(int k) {
+		int[] heap = new int[Math.max(0, Math.min(k, size))];
+		int count = 0;
+		for (int i = 0; i < size; i++) {
+			if (count < heap.length) {
+				// sift up
+				int child = count++;
+				while (child > 0) {
+					int parent = (child - 1) / 2;
+					if (!worse(i, heap[parent])) {
+						break;
+					}
+					heap[child] = heap[parent];
+					child = parent;
+				}
+				heap[child] = i;
+			} else if (count > 0 && worse(heap[0], i)) {
+				// replace the worst kept minutia and sift down
+				int parent = 0;
+				while (true) {
+					int child = 2 * parent + 1;
+					if (child >= count) {
+						break;
+					}
+					if (child + 1 < count && worse(heap[child + 1], heap[child])) {
+						child++;
+					}
+					if (!worse(heap[child], i)) {
+						break;
+					}
+					heap[parent] = heap[child];
+					parent = child;
+				}
+				heap[parent] = i;
+			}
+		}
+
+		// at most k elements, insertion sort by ascending quality then record order
+		for (int a = 1; a < count; a++) {
+			int current = heap[a];
+			int b = a - 1;
+			while (b >= 0 && (quality[heap[b]] > quality[current]
+					|| (quality[heap[b]] == quality[current] && heap[b] > current))) {
+				heap[b + 1] = heap[b];
+				b--;
+			}
+			heap[b + 1] = current;
+		}
+		return heap;
+	}
+
+	/**
+	 * Heap ordering : lower quality first, then the latest in the record
+	 * @param a index of a minutia
+	 * @param b index of another minutia
+	 * @return true if minutia a is less worth keeping than minutia b
+	 */
+	private boolean worse(int a, int b) {
+		return quality[a] < quality[b] || (quality[a] == quality[b] && a > b);
+	}
+
+	/**
+	 * Builds the {@link Minutia} objects of all the minutiae, in record order
+	 * @return the list of minutiae
+	 */
+	public ArrayList<Minutia> toMinutiae() {
+		ArrayList<Minutia> list = new ArrayList<Minutia>(size);
+		for (int i = 0; i < size; i++) {
+			list.add(getMinutia(i));
+		}
+		return list;
+	}
+}
@@ -0,0 +1,95 @@
+package biometrics;
+
+import java.nio.ByteBuffer;
+
+import utils.Utils;
+
+/**
+ * Transformed template ready for host-side matching : the packed cylinders
+ * as 64-bit words, the norm (number of 1's) of each cylinder and the
+ * direction of the minutia each cylinder is centered on.
+ * Immutable, can be shared between matching threads.
+ * @author Jonathan Cheseaux (jonathan.cheseaux@epfl.ch)
+ *
+ */
+public class PackedTemplate {
+
+	/** size in bytes of a packed cylinder with the default MCC parameters (ns=16, nd=8) **/
+	public static final int CYLINDER_SIZE = 128;
+
+	/** number of cylinders **/
+	private int cylinders;
+	/** number of 64-bit words per cylinder **/
+	private int wordsPerCylinder;
+	/** the packed cylinders, as sent to the card (with the +128 bias of every byte) **/
+	private long[] words;
+	/** number of 1's of each cylinder **/
+	private int[] norms;
+	/** minutiae directions in degrees **/
+	private short[] directions;
+
+	/**
+	 * Builds a template made of {@link #CYLINDER_SIZE} bytes cylinders
+	 * @param template the transformed template, see {@link SecureTemplateGenerator}
+	 * @param directions the minutiae directions in degrees, see {@link ReadMinutiaFromISOFile#getMinutiaeDir()}
+	 */
+	public PackedTemplate(byte[] template, short[] directions) {
+		this(template, CYLINDER_SIZE, directions);
+	}
+
+	/**
+	 * Initialization constructor.
+	 * @param template the transformed template
+	 * @param cylinderSize size in bytes of a packed cylinder, multiple of 8
+	 * @param directions the minutiae directions in degrees, one per cylinder at least
+	 */
+	public PackedTemplate(byte[] template, int cylinderSize, short[] directions) {
+		if (cylinderSize <= 0 || cylinderSize % 8 != 0) {
+			throw new IllegalArgumentException("Cylinder size must be a positive multiple of 8 bytes");
+		}
+		this.cylinders = template.length / cylinderSize;
+		if (directions.length < cylinders) {
+			throw new IllegalArgumentException("Expected " + cylinders + " directions, got " + directions.length);
+		}
+		this.wordsPerCylinder = cylinderSize / 8;
+		this.words = new long[cylinders * wordsPerCylinder];
+		ByteBuffer.wrap(template, 0, cylinders * cylinderSize).asLongBuffer().get(words);
+		this.norms = new int[cylinders];
+		for (int c = 0; c < cylinders; c++) {
+			norms[c] = Utils.packedNorm(template, c * cylinderSize, cylinderSize);
+		}
+		this.directions = new short[cylinders];
+		System.arraycopy(directions, 0, this.directions, 0, cylinders);
+	}
+
+	public int getCylinders() {
+		return cylinders;
+	}
+
+	public int getWordsPerCylinder() {
+		return wordsPerCylinder;
+	}
+
+	public int getNorm(int cylinder) {
+		return norms[cylinder];
+	}
+
+	public short getDirection(int cylinder) {
+		return directions[cylinder];
+	}
+
+	/** the packed cylinders, one after the other **/
+	long[] getWords() {
+		return words;
+	}
+
+	/** the norm of each cylinder **/
+	int[] getNorms() {
+		return norms;
+	}
+
+	/** the direction of each cylinder **/
+	short[] getDirections() {
+		return directions;
+	}
+}
@@ -0,0 +1,89 @@
+package biometrics;
+
+import java.util.ArrayList;
+
+/**
+ * Computes the binarized transformed template (flag 1 of {@link MCCBase#transform})
+ * without materializing the real-valued template : each cylinder is computed in a
+ * single reusable buffer and immediately turned into its packed bits, so only
+ * the transformed bytes (128 per cylinder with the default parameters) are kept.
+ * @author Jonathan Cheseaux (jonathan.cheseaux@epfl.ch)
+ *
+ */
+public class SecureTemplateGenerator {
+
+	/** the MCC engine computing the cylinders **/
+	private MCCBase engine;
+	/** the transformation key **/
+	private int[] H;
+	/** multiplier of the sum-square-modulo transformation **/
+	private double A;
+	/** modulus of the sum-square-modulo transformation **/
+	private double n;
+	/** the cylinder being transformed **/
+	private double[] cylinder;
+
+	/**
+	 * Initialization constructor.
+	 * @param engine the MCC engine holding the minutiae of the fingerprint
+	 * @param H the transformation key
+	 * @param A multiplier of the sum-square-modulo transformation
+	 * @param n modulus of the sum-square-modulo transformation
+	 */
+	public SecureTemplateGenerator(MCCBase engine, ArrayList<Integer> H, double A, double n) {
+		this(engine, MCCBase.compileKey(H), A, n);
+	}
+
+	/**
+	 * Initialization constructor.
+	 * @param engine the MCC engine holding the minutiae of the fingerprint
+	 * @param H the transformation key, see {@link MCCBase#compileKey(ArrayList)}
+	 * @param A multiplier of the sum-square-modulo transformation
+	 * @param n modulus of the sum-square-modulo transformation
+	 */
+	public SecureTemplateGenerator(MCCBase engine, int[] H, double A, double n) {
+		this.engine = engine;
+		this.H = H;
+		this.A = A;
+		this.n = n;
+		this.cylinder = new double[engine.getCylinderSize()];
+	}
+
+	/**
+	 * Generates the transformed template
+	 * @return the transformed template, identical to transform(computeTemplate(), H, 1, A, n)
+	 */
+	public byte[] generate() {
+		byte[] result = new byte[engine.getTransformedSize(engine.getMinutiaeCount())];
+		generate(result);
+		return result;
+	}
+
+	/**
+	 * Generates the transformed template into a caller-provided array. Does not allocate.
+	 * @param dest destination, at least getTransformedSize(getMinutiaeCount()) long
+	 * @return the number of bytes written
+	 */
+	public int generate(byte[] dest) {
+		int cylinders = engine.getMinutiaeCount();
+		int k = 0;
+		int index = 0;
+		int acc = 0;
+		for (int f = 0; f < cylinders; f++) {
+			engine.computeCylinder(f, cylinder);
+			for (int j = 0; j < cylinder.length; j += 2) {
+				// double sum-square-modulo transformation
+				double d1 = (A*(cylinder[H[j]]+cylinder[H[j+1]]));
+				double c1 = (d1*d1)%n; // ciphertext
+				acc = (acc << 1) | (c1 > 100000 ? 1 : 0);
+				if (++index == 8) {
+					// same +128 bias as utils.Utils.bitsArrayToByte
+					dest[k++] = (byte) (acc + 128);
+					acc = 0;
+					index = 0;
+				}
+			}
+		}
+		return k;
+	}
+}
@@ -0,0 +1,135 @@
+package biometrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Gallery of enrolled templates for 1:N identification. The cylinders of all
+ * the templates are appended to one contiguous array of 64-bit words, with
+ * their norms and directions in parallel columns, so that scoring a probe
+ * against the whole gallery walks memory sequentially.
+ * Entries are appended once; the gallery must not be modified while it is searched.
+ * @author Jonathan Cheseaux (jonathan.cheseaux@epfl.ch)
+ *
+ */
+public class TemplateGallery {
+
+	/** number of 64-bit words per cylinder **/
+	private int wordsPerCylinder;
+
+	/** identifiers of the enrolled users **/
+	private ArrayList<String> ids = new ArrayList<String>();
+	/** index of the first cylinder of each entry (size()+1 entries) **/
+	private int[] starts = new int[16];
+
+	/** packed cylinders of all the entries **/
+	private long[] words;
+	/** norm of every cylinder **/
+	private int[] norms = new int[256];
+	/** direction of every cylinder **/
+	private short[] directions = new short[256];
+
+	/**
+	 * Gallery of templates made of {@link PackedTemplate#CYLINDER_SIZE} bytes cylinders
+	 */
+	public TemplateGallery() {
+		this(PackedTemplate.CYLINDER_SIZE);
+	}
+
+	/**
+	 * Initialization constructor.
+	 * @param cylinderSize size in bytes of a packed cylinder, multiple of 8
+	 */
+	public TemplateGallery(int cylinderSize) {
+		if (cylinderSize <= 0 || cylinderSize % 8 != 0) {
+			throw new IllegalArgumentException("Cylinder size must be a positive multiple of 8 bytes");
+		}
+		this.wordsPerCylinder = cylinderSize / 8;
+		this.words = new long[256 * wordsPerCylinder];
+	}
+
+	/**
+	 * Enrolls a template
+	 * @param id identifier of the user
+	 * @param template the user's template
+	 * @return the index of the entry
+	 */
+	public int add(String id, PackedTemplate template) {
+		if (template.getWordsPerCylinder() != wordsPerCylinder) {
+			throw new IllegalArgumentException("Template cylinders do not have the gallery size");
+		}
+		int index = ids.size();
+		int first = starts[index];
+		int count = template.getCylinders();
+		ensureCapacity(first + count);
+		System.arraycopy(template.getWords(), 0, words, first * wordsPerCylinder, count * wordsPerCylinder);
+		System.arraycopy(template.getNorms(), 0, norms, first, count);
+		System.arraycopy(template.getDirections(), 0, directions, first, count);
+
+		ids.add(id);
+		if (index + 2 > starts.length) {
+			starts = Arrays.copyOf(starts, starts.length * 2);
+		}
+		starts[index + 1] = first + count;
+		return index;
+	}
+
+	/**
+	 * Grows the cylinder columns
+	 * @param cylinders number of cylinders the columns must hold
+	 */
+	private void ensureCapacity(int cylinders) {
+		if (cylinders > norms.length) {
+			int capacity = Math.max(cylinders, norms.length * 2);
+			words = Arrays.copyOf(words, capacity * wordsPerCylinder);
+			norms = Arrays.copyOf(norms, capacity);
+			directions = Arrays.copyOf(directions, capacity);
+		}
+	}
+
+	/**
+	 * Scores a probe against an entry
+	 * @param matcher the matcher of the calling thread
+	 * @param index index of the entry
+	 * @param probe the challenger's template
+	 * @return the score as returned by the card
+	 */
+	public int match(LSSMatcher matcher, int index, PackedTemplate probe) {
+		if (probe.getWordsPerCylinder() != wordsPerCylinder) {
+			throw new IllegalArgumentException("Probe cylinders do not have the gallery size");
+		}
+		return matcher.match(words, norms, directions, starts[index], starts[index + 1] - starts[index],
+				probe.getWords(), probe.getNorms(), probe.getDirections(), 0, probe.getCylinders(), wordsPerCylinder);
+	}
+
+	/** index of the first cylinder of an entry in the cylinder columns **/
+	int getStart(int index) {
+		return starts[index];
+	}
+
+	/** the norm of every cylinder of the gallery **/
+	int[] getNorms() {
+		return norms;
+	}
+
+	/** the direction of every cylinder of the gallery **/
+	short[] getDirections() {
+		return directions;
+	}
+
+	public int getWordsPerCylinder() {
+		return wordsPerCylinder;
+	}
+
+	public int size() {
+		return ids.size();
+	}
+
+	public String getId(int index) {
+		return ids.get(index);
+	}
+
+	public int getCylinders(int index) {
+		return starts[index + 1] - starts[index];
+	}
+}
@@ -0,0 +1,33 @@
+package biometrics;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Lane accumulation with the Vector API (jdk.incubator.vector, JDK 16 and
+ * later). This class is only loaded by name from {@link MCCBase#useVectorKernel(boolean)},
+ * so the rest of the extraction works on runtimes where the incubator module
+ * is missing or not added (--add-modules jdk.incubator.vector).
+ * @author Jonathan Cheseaux (jonathan.cheseaux@epfl.ch)
+ *
+ */
+class VectorLaneAccumulator implements LaneAccumulator {
+
+	/** preferred vector shape of the platform **/
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+	@Override
+	public void accumulate(double[] lanes, double[] directional, int base, double weight, int count) {
+		int k = 0;
+		int bound = SPECIES.loopBound(count);
+		for (; k < bound; k += SPECIES.length()) {
+			DoubleVector acc = DoubleVector.fromArray(SPECIES, lanes, k);
+			DoubleVector d = DoubleVector.fromArray(SPECIES, directional, base + k);
+			// mul then add, a fused multiply-add would round differently from the scalar kernel
+			acc.add(d.mul(weight)).intoArray(lanes, k);
+		}
+		for (; k < count; k++) {
+			lanes[k] += directional[base + k] * weight;
+		}
+	}
+}
@@ -0,0 +1,193 @@
+package client;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import com.sun.javacard.apduio.CadTransportException;
+
+/**
+ * Long-lived session with one card : the card is powered up and the applet
+ * selected once, then the commands are read line by line from the standard
+ * input or from local TCP clients (one at a time). The enrolled user is
+ * remembered, so a comparison with the same enrolled impression only uploads
+ * and matches the challenger.
+ * <ul>
+ * <li>ENROLL &lt;file&gt; : enrolls a user, answers OK enrolled (or OK cached)</li>
+ * <li>VERIFY &lt;file&gt; : matches a challenger against the enrolled user, answers SCORE &lt;score&gt;</li>
+ * <li>MATCH &lt;enrolled file&gt;;&lt;challenger file&gt; : enrolls if needed, then verifies</li>
+ * <li>KEY &lt;0|1&gt; : 0 = same key, 1 = different key for the following commands</li>
+ * <li>STATUS : answers OK &lt;enrolled file&gt; (or OK none)</li>
+ * <li>QUIT : ends the input or the client connection</li>
+ * <li>SHUTDOWN : stops the daemon</li>
+ * </ul>
+ * Errors are answered ERROR &lt;message&gt;, ERROR card : &lt;status word&gt; when the
+ * card rejects a command. The answers are the only lines written
+ * on the output : the reader's diagnostics go to the standard error.
+ * @author Jonathan Cheseaux (jonathan.cheseaux@epfl.ch)
+ *
+ */
+public class CardDaemon {
+
+	/** the session with the card **/
+	private JavaCardReader reader;
+	/** true to transform the challengers with another key than the enrolled user **/
+	private boolean differentKey;
+	/** false once a SHUTDOWN command is received **/
+	private boolean running = true;
+
+	/**
+	 * Initialization constructor.
+	 * @param reader the session with the card
+	 * @param differentKey true to transform the challengers with another key than the enrolled user
+	 */
+	public CardDaemon(JavaCardReader reader, boolean differentKey) {
+		this.reader = reader;
+		this.differentKey = differentKey;
+	}
+
+	/**
+	 * Executes the commands of an input until QUIT, SHUTDOWN or the end of the input
+	 * @param in the commands, one per line
+	 * @param out the answers, one line per command
+	 * @throws IOException if the input cannot be read
+	 */
+	public void serve(BufferedReader in, PrintWriter out) throws IOException {
+		String line;
+		while (running && (line = in.readLine()) != null) {
+			line = line.trim();
+			if (line.length() == 0) {
+				continue;
+			}
+			if (line.equalsIgnoreCase("QUIT")) {
+				break;
+			}
+			out.println(execute(line));
+			out.flush();
+		}
+	}
+
+	/**
+	 * Executes a command
+	 * @param line the command line
+	 * @return the answer
+	 */
+	public String execute(String line) {
+		int separator = line.indexOf(' ');
+		String command = (separator < 0 ? line : line.substring(0, separator)).toUpperCase();
+		String argument = separator < 0 ? "" : line.substring(separator + 1).trim();
+		try {
+			if (command.equals("ENROLL")) {
+				boolean enrolled = reader.enrollIfNeeded(existing(argument), differentKey);
+				if (reader.getEnrolledFile() == null) {
+					return "ERROR enrollment failed";
+				}
+				return enrolled ? "OK enrolled" : "OK cached";
+			} else if (command.equals("VERIFY")) {
+				if (reader.getEnrolledFile() == null) {
+					return "ERROR no user enrolled";
+				}
+				return "SCORE " + reader.verifyChallenger(existing(argument), differentKey);
+			} else if (command.equals("MATCH")) {
+				int split = argument.indexOf(';');
+				if (split < 0) {
+					return "ERROR usage : MATCH <enrolled file>;<challenger file>";
+				}
+				File enrolled = existing(argument.substring(0, split).trim());
+				File challenger = existing(argument.substring(split + 1).trim());
+				reader.enrollIfNeeded(enrolled, differentKey);
+				if (reader.getEnrolledFile() == null) {
+					return "ERROR enrollment failed";
+				}
+				return "SCORE " + reader.verifyChallenger(challenger, differentKey);
+			} else if (command.equals("KEY")) {
+				differentKey = Integer.parseInt(argument) == 1;
+				return "OK";
+			} else if (command.equals("STATUS")) {
+				File enrolled = reader.getEnrolledFile();
+				return "OK " + (enrolled == null ? "none" : enrolled.getPath());
+			} else if (command.equals("SHUTDOWN")) {
+				running = false;
+				return "OK";
+			}
+			return "ERROR unknown command : " + command;
+		} catch (NumberFormatException e) {
+			return "ERROR invalid number : " + argument;
+		} catch (CardStatusException e) {
+			return "ERROR card : " + e.getMessage();
+		} catch (IOException e) {
+			return "ERROR " + e.getMessage();
+		} catch (CadTransportException e) {
+			return "ERROR card : " + e.getMessage();
+		} catch (RuntimeException e) {
+			// a bad input must not stop the daemon
+			return "ERROR " + e;
+		}
+	}
+
+	/**
+	 * @return false once a SHUTDOWN command has been received
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Checks that an impression file exists
+	 * @param path the path of the file
+	 * @return the file
+	 * @throws IOException if the file does not exist
+	 */
+	private static File existing(String path) throws IOException {
+		File file = new File(path);
+		if (!file.isFile()) {
+			throw new IOException("No such file : " + path);
+		}
+		return file;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("Usage : carddaemon <card port> [listen port] [key (0 = same key, 1 = different key)]");
+			System.out.println("Without listen port, the commands are read from the standard input");
+			System.exit(-1);
+		}
+		int cardPort = Integer.parseInt(args[0]);
+		int listenPort = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+		boolean differentKey = args.length > 2 && Integer.parseInt(args[2]) == 1;
+
+		JavaCardReader reader = new JavaCardReader("localhost", cardPort);
+		CardDaemon daemon = new CardDaemon(reader, differentKey);
+		try {
+			if (listenPort == 0) {
+				daemon.serve(new BufferedReader(new InputStreamReader(System.in)), new PrintWriter(System.out));
+				return;
+			}
+			// local clients only, served one after the other as they share the card
+			ServerSocket server = new ServerSocket(listenPort, 50, InetAddress.getByName("localhost"));
+			try {
+				System.out.println("Listening on port " + server.getLocalPort());
+				while (daemon.isRunning()) {
+					Socket client = server.accept();
+					try {
+						daemon.serve(new BufferedReader(new InputStreamReader(client.getInputStream())),
+								new PrintWriter(client.getOutputStream()));
+					} catch (IOException e) {
+						System.out.println("Client error : " + e.getMessage());
+					} finally {
+						client.close();
+					}
+				}
+			} finally {
+				server.close();
+			}
+		} finally {
+			reader.close();
+		}
+	}
+}
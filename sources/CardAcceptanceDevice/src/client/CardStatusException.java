@@ -0,0 +1,32 @@
+package client;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the card answers a command with another status word than 9000
+ * @author Jonathan Cheseaux (jonathan.cheseaux@epfl.ch)
+ *
+ */
+public class CardStatusException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	/** the status word returned by the card **/
+	private final int status;
+
+	/**
+	 * Initialization constructor.
+	 * @param status the status word returned by the card
+	 */
+	public CardStatusException(int status) {
+		super(Integer.toHexString(status));
+		this.status = status;
+	}
+
+	/**
+	 * @return the status word returned by the card
+	 */
+	public int getStatus() {
+		return status;
+	}
+}
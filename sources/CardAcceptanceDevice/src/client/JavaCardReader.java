@@ -2,6 +2,7 @@ package client;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -11,6 +12,7 @@ import java.net.Socket;
 import java.util.ArrayList;
 
 import utils.ScoreTest;
+import biometrics.MinutiaeStore;
 
 import javacard.framework.Util;
 
@@ -20,7 +22,9 @@ import com.sun.javacard.apduio.CadTransportException;
 
 /**
  * This class represent the card acceptance device and handle communications
- * with the smart cards (the simulator for now on)
+ * with the smart cards (the simulator for now on). An instance is a session with
+ * one card, over its own connection : sessions with several cards may run in
+ * parallel (see {@link ReaderPool}), but a session itself is not thread-safe.
  * @author Jonathan Cheseaux (jonathan.cheseaux@epfl.ch)
  *
  */
@@ -32,6 +36,9 @@ public class JavaCardReader {
 	/** Length of data sent in one APDU request **/
 	public static final short PACKET_SIZE = 100;
 
+	/** Largest Lc of an extended length APDU **/
+	public static final int MAX_EXTENDED_SIZE = 32767;
+
 	/** Insruction command for setting challenger's template on the card */
 	public static final byte INS_SET_TEMPLATE_CAP = 0x01;
 
@@ -44,20 +51,121 @@ public class JavaCardReader {
 	/** Insruction command for enroll user's minutiae on the card */
 	private static final byte INS_ENROLL_MINUTIAE = 0x04;
 
-	/** Insruction command for matching the fingerprints */
-	private static final byte INS_MATCH = 0x05;
+	/** Class of the verification command **/
+	public static final byte CLA_VERIFY = (byte) 0x80;
+
+	/** Class bit set on every command of a chain but the last one (ISO 7816-4) **/
+	public static final byte CLA_CHAINING = (byte) 0x10;
+
+	/** Insruction command for verifying a challenger in a single (chained) command */
+	public static final byte INS_VERIFY = 0x07;
+
+	/** Same as INS_VERIFY, the challenger being sent as a compact frame */
+	public static final byte INS_VERIFY_COMPACT = 0x08;
+
+	/** Size of a packed cylinder **/
+	private static final int CYLINDER_SIZE = 128;
 
-	/** Insruction command for resetting challenger's template and minutiae*/
-	private static final byte RESET = 0x06;
+	/** Size of the mask of the non-empty bytes of a sparse cylinder **/
+	private static final int MASK_SIZE = 16;
+
+	/** Value of an empty byte of a packed cylinder (no bit set, +128 bias) **/
+	private static final byte EMPTY = (byte) 0x80;
 
 	/** User ID to enroll on the card **/
 	private static int USER = 14;
 
+	/** Identifier of the MonApplet applet **/
+	private static final byte[] APPLET_AID = { 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, 0x09, 0x00, 0x00 };
+
+	/** Connection to the card **/
+	private Socket socket;
+
 	/** Card Acceptance Device client **/
-	private static CadT1Client cad;
+	private CadT1Client cad;
+
+	/** Length of the template chunks, negotiated at applet selection **/
+	private int chunkSize = PACKET_SIZE;
 
-	/** **/
-	private static boolean differentKey = true;
+	/** true to send the challengers as compact frames **/
+	private boolean compactFrames = true;
+
+	/** Fingerprint file of the user enrolled on the card, null if none **/
+	private File enrolledFile;
+
+	/** true if the enrolled template was transformed with a random key **/
+	private boolean enrolledRandomKey;
+
+	/** Minutiae of the impressions already read, each file is parsed once (shared by the sessions) **/
+	private static MinutiaeStore store = new MinutiaeStore();
+
+	/**
+	 * Opens a session : connects to the card, powers it up and selects the applet
+	 * @param host host of the card (simulator or reader slot)
+	 * @param port port of the card
+	 * @throws IOException if the connection fails or the applet cannot be selected
+	 * @throws CadTransportException if there is a communication error with the smart card
+	 */
+	public JavaCardReader(String host, int port) throws IOException, CadTransportException {
+		socket = new Socket(host, port);
+		try {
+			socket.setTcpNoDelay(true);
+			BufferedInputStream input = new BufferedInputStream(socket.getInputStream());
+			BufferedOutputStream output = new BufferedOutputStream(socket.getOutputStream());
+			cad = new CadT1Client(input, output);
+
+			/* Mise sous tension de la carte */
+			cad.powerUp();
+
+			/* Slection de l'applet */
+			Apdu apdu = new Apdu();
+			apdu.command[Apdu.CLA] = 0x00;
+			apdu.command[Apdu.INS] = (byte) 0xA4;
+			apdu.command[Apdu.P1] = 0x04;
+			apdu.command[Apdu.P2] = 0x00;
+			apdu.setDataIn(APPLET_AID);
+			apdu.setLe(2);
+			cad.exchangeApdu(apdu);
+			if (apdu.getStatus() != 0x9000) {
+				throw new IOException("Erreur lors de la slection de l'applet : " + Integer.toHexString(apdu.getStatus()));
+			}
+			chunkSize = negotiateChunkSize(apdu);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		} catch (CadTransportException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Powers the card down and closes the connection
+	 * @throws IOException if the connection cannot be closed
+	 */
+	public void close() throws IOException {
+		try {
+			cad.powerDown();
+		} catch (Exception e) {
+			System.err.println("Erreur lors de l'envoi de la commande Powerdown a la Javacard");
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * @param compactFrames true to send the challengers as compact frames, false to send them as is
+	 */
+	public void setCompactFrames(boolean compactFrames) {
+		this.compactFrames = compactFrames;
+	}
+
+	/**
+	 * @return the length of the template chunks negotiated with the applet
+	 */
+	public int getChunkSize() {
+		return chunkSize;
+	}
 
 	/**
 	 * This methods load a transformed template on a smart card
@@ -69,9 +177,9 @@ public class JavaCardReader {
 	 * @throws IOException if there is an Input/Ouptut problem with the template file
 	 * @throws CadTransportException if there is a communication error with the smart card
 	 */
-	private static void load_template_on_card(Apdu apdu, boolean enroll, File file, boolean randomizeKey) throws IOException, CadTransportException {
+	private void load_template_on_card(Apdu apdu, boolean enroll, File file, boolean randomizeKey) throws IOException, CadTransportException {
 		
-		System.out.println("Loading " + (enroll ? "enrolment " : "verification ") +  "template file : " + file.getName());
+		System.err.println("Loading " + (enroll ? "enrolment " : "verification ") +  "template file : " + file.getName());
 		apdu.command[Apdu.INS] = enroll ? INS_ENROLL_TEMPLATE : INS_SET_TEMPLATE_CAP;
 		byte[] template1 = acquire_template(file,randomizeKey);
 
@@ -84,9 +192,9 @@ public class JavaCardReader {
 		int packetNumber = 0;
 		while (toSend > 0) {
 			++packetNumber;
-			byte[] packet = getDataPacket(offset,  PACKET_SIZE, template1);
-			toSend -=  PACKET_SIZE;
-			offset +=  PACKET_SIZE;
+			byte[] packet = getDataPacket(offset, chunkSize, template1);
+			toSend -= chunkSize;
+			offset += chunkSize;
 			apdu.command[Apdu.P1] = (byte)((short) totalLength & 0xff);
 			apdu.command[Apdu.P2] = (byte)(((short) totalLength >> 8) & 0xff);
 			apdu.setDataIn(packet);
@@ -97,28 +205,6 @@ public class JavaCardReader {
 		}
 	}
 
-	private static void printStatistics(byte[] tab) {
-		int index = 0;
-		while(index < tab.length) {
-			int zeroCount = 0;
-			int oneCount = 0;
-			while (index < tab.length && tab[index++] == 0.0) {
-				zeroCount++;
-			}
-			while (index < tab.length && tab[index++] == 1.0) {
-				oneCount++;
-			}
-			if (zeroCount > 8) {
-				System.out.println("Group of " + zeroCount + " zeros");
-			}
-			if (oneCount > 8) {
-				System.out.println("Group of " + oneCount + " zeros");
-			}
-			zeroCount = 0;
-			oneCount = 0;
-		}
-	}
-
 	/**
 	 * This methods load a minutiae array on a smart card
 	 * @param apdu, the APDU request to be sent
@@ -129,8 +215,8 @@ public class JavaCardReader {
 	 * @throws IOException if there is an Input/Ouptut problem with the template file
 	 * @throws CadTransportException if there is a communication error with the smart card
 	 */
-	private static void load_minutiae_on_card(Apdu apdu, boolean enroll, File file) throws IOException, CadTransportException {
-		System.out.println("Loading " + (enroll ? "enrolment " : "verification ") +  "minutiae file : " + file.getName());
+	private void load_minutiae_on_card(Apdu apdu, boolean enroll, File file) throws IOException, CadTransportException {
+		System.err.println("Loading " + (enroll ? "enrolment " : "verification ") +  "minutiae file : " + file.getName());
 		apdu.command[Apdu.INS] = enroll ? INS_ENROLL_MINUTIAE : INS_SET_MINUTIA_CAP;
 		short[] minutia = acquire_minutia(file);
 		byte[] minutiaBytes = new byte[minutia.length * 2];
@@ -164,137 +250,70 @@ public class JavaCardReader {
 		String folderOut = args[2];
 		int port = Integer.parseInt(args[3]);
 		int keychoice = Integer.parseInt(args[4]);
-		differentKey = keychoice == 1 ? true : false;
+		boolean differentKey = keychoice == 1 ? true : false;
 
 		/* Connexion a la Javacard */
-		Socket sckCard;
-		try {
-			sckCard = new Socket("localhost", port);
-			sckCard.setTcpNoDelay(true);
-			BufferedInputStream input = new BufferedInputStream(sckCard.getInputStream());
-			BufferedOutputStream output = new BufferedOutputStream(sckCard.getOutputStream());
-			cad = new CadT1Client(input, output);
-		} catch (Exception e) {
-			e.printStackTrace();
-			return;
-		}		
-
-		/* Mise sous tension de la carte */
+		JavaCardReader reader;
 		try {
-			cad.powerUp();
+			reader = new JavaCardReader("localhost", port);
 		} catch (Exception e) {
 			e.printStackTrace();
 			return;
 		}
 
 		long startTime = System.currentTimeMillis();
-
-		/* Slection de l'applet */
-		Apdu apdu = new Apdu();
-		apdu.command[Apdu.CLA] = 0x00;
-		apdu.command[Apdu.INS] = (byte) 0xA4;
-		apdu.command[Apdu.P1] = 0x04;
-		apdu.command[Apdu.P2] = 0x00;
-		byte[] appletAID = { 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, 0x09, 0x00, 0x00 };
-		apdu.setDataIn(appletAID);
-		cad.exchangeApdu(apdu);
-		if (apdu.getStatus() != 0x9000) {
-			System.out.println("Erreur lors de la slection de l'applet");
-			System.exit(1);
-		}
-
-//		System.out.println("Selection time : " + getDuration(startTime));
-		startTime = System.currentTimeMillis();
-
-		//		while (!fin) {
-		//			System.out.println("############################################################");
-		//			System.out.print("# 1 - Enroll template | 2 - Enroll Minutiae | 3 - Send extern template | 4 - Send extern minutiae | 5 - Match | 6 - Exit ? ");
-		//
-		//			Scanner scanner = new Scanner(System.in);
-		//
-		//			int choix = scanner.nextInt();
-		//			while (!(choix >= 1 && choix <= 6)) {
-		//				choix = scanner.nextInt();
-		//			}
-		//			scanner.nextLine();
-
-		apdu = new Apdu();
-		apdu.command[Apdu.CLA] = CLA_MONAPPLET;
-		apdu.command[Apdu.P1] = 0x00;
-		apdu.command[Apdu.P2] = 0x00;
-		apdu.setLe(0x7f);
-
-		enrollUser(apdu, enrollTemplateFile, differentKey);
-//		System.out.println("User enrolment : " + getDuration(startTime));
-		startTime = System.currentTimeMillis();
-		loadChallenger(apdu, challengerFile, differentKey);
-//		System.out.println("challenger template : " + getDuration(startTime));
-		startTime = System.currentTimeMillis();
-
-
-		double score = matchFingerprint(apdu);
-		System.out.println("Matchin score = " + score);
-//		System.out.println("Matching time : " + getDuration(startTime));
-		startTime = System.currentTimeMillis();
-		
-		File folder = new File("C:/Users/jonathan/Desktop/JavaCardReader/" + folderOut + "/" + enrollTemplateFile.getName());
-		if (!folder.exists()) {
-			folder.mkdirs();
+		try {
+			reader.enrollUser(enrollTemplateFile, differentKey);
+//			System.out.println("User enrolment : " + getDuration(startTime));
+			startTime = System.currentTimeMillis();
+			double score = reader.verifyChallenger(challengerFile, differentKey);
+			System.out.println("Matchin score = " + score);
+//			System.out.println("Matching time : " + getDuration(startTime));
+
+			File folder = new File(folderOut);
+			if (!folder.exists()) {
+				folder.mkdirs();
+			}
+			printScoreToFile(enrollTemplateFile, challengerFile, score, new File(folder, "scores.csv"));
+
+			//
+			//		reader.testDatabase(differentKey, new File(folder, "scores.csv"));
+			//
+		} finally {
+			/* Mise hors tension de la carte */
+			reader.close();
 		}
-		
-		File fileOut = new File(folder.getAbsolutePath() + "/" + challengerFile.getName() + ".csv");
-		printScoreToFile(score, fileOut);
-
-
-		//
-		//		testDatabase(apdu);
-		//
-		/* Mise hors tension de la carte */
-//		try {
-//			//			
-//			cad.powerDown();
-//		} catch (Exception e) {
-//			System.out.println("Erreur lors de l'envoi de la commande Powerdown a la Javacard");
-//			return;
-//		}		
 	}
 
 	/**
 	 * Tests the whole FVC 2000-2002-2004 databases against imposters score
-	 * @param apdu the APDU to be sent
+	 * @param out the file the scores are appended to
 	 * @throws IOException if there is an Input/Output problem with the template file
 	 * @throws CadTransportException if there is a communication error with the smart card
 	 */
-	public static void testDatabase(Apdu apdu, boolean randomizeKey) throws IOException, CadTransportException {
+	public void testDatabase(boolean randomizeKey, File out) throws IOException, CadTransportException {
 		ScoreTest cWatch = new ScoreTest();
 		boolean enrolled = false;
-		System.out.println(new File("res/").getAbsoluteFile());
+		System.err.println(new File("res/").getAbsoluteFile());
 		for (int user = 4; user < 100; user++) {
 			cWatch.walk("res/1/1/user" + user + "/");
 
 			File enrollTemplateFile = cWatch.getTemplates().get(0);
-			System.out.println("Enroll user : " + enrollTemplateFile.getPath());
-			if (!enrolled) {enrollUser(apdu, enrollTemplateFile,randomizeKey);}
+			System.err.println("Enroll user : " + enrollTemplateFile.getPath());
+			if (!enrolled) {enrollUser(enrollTemplateFile,randomizeKey);}
 			enrolled = true;
 			for (File file : cWatch.getTemplates()) {
 				if (file == enrollTemplateFile) {
 					continue;
 				}
-				File folder = new File("C:/Users/jonathan/Desktop/JavaCardReader/genuine2/" + enrollTemplateFile.getName());
-				if (!folder.exists()) {
-					folder.mkdirs();
+				System.err.println("Challenger : " + file.getAbsolutePath());
+				try {
+					double score = verifyChallenger(file, randomizeKey);
+					printScoreToFile(enrollTemplateFile, file, score, out);
+				} catch (CardStatusException e) {
+					// a rejected verification has no score, it is left out of the file
+					System.err.println("\t# -- verification failed : " + e.getMessage() + " --");
 				}
-				File fileOut = new File(folder.getAbsolutePath() + "/" + file.getName() + ".csv");
-				System.out.println("fileOUT = " + fileOut.getAbsolutePath());
-
-				System.out.println("Challenger : " + file.getAbsolutePath());
-				loadChallenger(apdu, file, randomizeKey);
-
-				double score = matchFingerprint(apdu);
-				printScoreToFile(score, fileOut);
-
-				apdu.command[0] = RESET;
-				cad.exchangeApdu(apdu);
 
 				//				System.out.println("Reponse : " + apdu.getStatus());
 
@@ -308,95 +327,215 @@ public class JavaCardReader {
 
 
 	/**
-	 * Print the scores in a text file
-	 * @param scores a list of scores
-	 * @param out the output file to be written
+	 * Appends a score to a CSV file (enrolled;challenger;score), the same
+	 * file collecting the scores of all the comparisons
+	 * @param enrolled the enrolled impression
+	 * @param challenger the challenger impression
+	 * @param score the matching score
+	 * @param out the output file
 	 */
-	private static void printScoreToFile(double score, File out) {
-		//		DataOutputStream dos = new DataOutputStream(new FileOutputStream(out));
+	private static void printScoreToFile(File enrolled, File challenger, double score, File out) {
 		PrintStream pStr;
 		try {
-			pStr = new PrintStream(new FileOutputStream(out));
+			pStr = new PrintStream(new FileOutputStream(out, true));
 
-			pStr.print(score);
+			pStr.println(enrolled.getName() + ";" + challenger.getName() + ";" + score);
 
 			pStr.close();
-//			System.out.println("Score printed at : " + out.getAbsolutePath());
 		} catch (FileNotFoundException e) {
-			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
 	}
 
 	/**
-	 * Sends a matching command to the smartcards and compute
-	 * the final score.
-	 * @param apdu The APDU to be sent to the card
+	 * Verifies a challenger with a single chained command : the template and the
+	 * minutiae directions are streamed in chunks of the negotiated size, every command
+	 * but the last one having the chaining bit set. The card matches on the last
+	 * command and forgets the challenger, no reset is needed. Unless disabled, the
+	 * challenger is sent as a compact frame (see {@link #encodeCompactPayload(byte[], short[])}).
+	 * @param file Fingerprint file location on the disk (will change by the data acquired from the CAD)
+	 * @param randomizeKey true to transform the template with another key than the enrolled one
 	 * @return a matching score between 0.0 and 1.0
+	 * @throws CardStatusException if the card rejects a command of the verification
 	 * @throws IOException if there is an Input/Ouptut problem with the template file
 	 * @throws CadTransportException if there is a communication error with the smart card
 	 */
-	private static double matchFingerprint(Apdu apdu) throws IOException, CadTransportException {
-		apdu.command[Apdu.INS] = INS_MATCH;
-		cad.exchangeApdu(apdu);
-		//		System.out.println("Received APDU : " + apdu);
-		double score = 0;
-		if (apdu.getStatus() == 0x9000) {
-			//			System.out.println("\t# -- transaction completed --");
-			score = Util.makeShort(apdu.dataOut[1],  apdu.dataOut[0]) / 1550.0;
-//			System.err.println("\tMatch done, final score : " + score);
-		} else {
-//			System.out.println("\t# -- transaction failed --");
+	public double verifyChallenger(File file, boolean randomizeKey) throws IOException, CadTransportException {
+		byte[] template = acquire_template(file, randomizeKey);
+		short[] minutiae = acquire_minutia(file);
+		byte[] payload = compactFrames ? encodeCompactPayload(template, minutiae) : encodeVerifyPayload(template, minutiae);
+
+		Apdu apdu = new Apdu();
+		int offset = 0;
+		do {
+			byte[] packet = getDataPacket(offset, chunkSize, payload);
+			offset += packet.length;
+			boolean last = offset >= payload.length;
+			apdu.command[Apdu.CLA] = last ? CLA_VERIFY : (byte) (CLA_VERIFY | CLA_CHAINING);
+			apdu.command[Apdu.INS] = compactFrames ? INS_VERIFY_COMPACT : INS_VERIFY;
+			apdu.command[Apdu.P1] = (byte) (template.length & 0xff);
+			apdu.command[Apdu.P2] = (byte) ((template.length >> 8) & 0xff);
+			apdu.setDataIn(packet);
+			apdu.setLe(last ? 2 : 0);
+			cad.exchangeApdu(apdu);
+			if (apdu.getStatus() != 0x9000) {
+				throw new CardStatusException(apdu.getStatus());
+			}
+		} while (offset < payload.length);
+		return Util.makeShort(apdu.dataOut[1], apdu.dataOut[0]) / 1550.0;
+	}
+
+	/**
+	 * Builds the payload of the verification command : the template followed by
+	 * the minutiae directions, 2 bytes each, low byte first
+	 * @param template the transformed template
+	 * @param minutiae the minutiae directions, one per cylinder
+	 * @return the payload
+	 */
+	static byte[] encodeVerifyPayload(byte[] template, short[] minutiae) {
+		byte[] payload = new byte[template.length + 2 * minutiae.length];
+		System.arraycopy(template, 0, payload, 0, template.length);
+		int index = template.length;
+		for (short s : minutiae) {
+			payload[index] = (byte) (s & 0xff);
+			payload[index + 1] = (byte) ((s >> 8) & 0xFF);
+			index += 2;
 		}
-		return score;
+		return payload;
 	}
 
 	/**
-	 * Send an insruction command to the card for setting challenger's template on the card 
-	 * @param apdu, the APDU request to be sent
-	 * @param file Fingerprint file location on the disk (will change by the data acquired from the CAD)
-	 * @throws IOException if there is an Input/Ouptut problem with the template file
-	 * @throws CadTransportException if there is a communication error with the smart card
+	 * Builds the compact payload of the verification command :
+	 * <ul>
+	 * <li>the number n of cylinders (1 byte)</li>
+	 * <li>the sparse flags, one bit per cylinder, most significant bit first (ceil(n/8) bytes)</li>
+	 * <li>the minutiae directions, 9 bits each, most significant bit first (ceil(9n/8) bytes)</li>
+	 * <li>the cylinders. A cylinder is sparse when sending the 16 bytes mask of its non-empty
+	 * bytes followed by these bytes only is shorter than sending its 128 bytes as is</li>
+	 * </ul>
+	 * @param template the transformed template
+	 * @param minutiae the minutiae directions in degrees, one per cylinder
+	 * @return the payload
 	 */
-	private static void loadChallenger(Apdu apdu, File file, boolean randomizeKey) throws IOException, CadTransportException {
-		load_template_on_card(apdu, false, file, randomizeKey);
-		if (apdu.getStatus() == 0x9000) {
-			//			System.out.println("\t# -- challenger template loaded --");
-		} else {
-			System.out.println("\t# -- challenger template failed --");
+	static byte[] encodeCompactPayload(byte[] template, short[] minutiae) {
+		int count = template.length / CYLINDER_SIZE;
+		if (count > 255 || count * CYLINDER_SIZE != template.length || minutiae.length < count) {
+			throw new IllegalArgumentException("Invalid template size : " + template.length);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream(template.length);
+		out.write(count);
+
+		byte[] flags = new byte[(count + 7) / 8];
+		for (int c = 0; c < count; c++) {
+			int nonEmpty = 0;
+			for (int i = c * CYLINDER_SIZE; i < (c + 1) * CYLINDER_SIZE; i++) {
+				if (template[i] != EMPTY) {
+					nonEmpty++;
+				}
+			}
+			if (MASK_SIZE + nonEmpty < CYLINDER_SIZE) {
+				flags[c / 8] |= 0x80 >> (c % 8);
+			}
 		}
+		out.write(flags, 0, flags.length);
 
-		load_minutiae_on_card(apdu, false, file);
-		if (apdu.getStatus() == 0x9000) {
-			//			System.out.println("\t# -- challenger minutiae loaded --");
-		} else {
-			System.out.println("\t# -- challenger minutiae failed --");
+		int bits = 0;
+		int bitCount = 0;
+		for (int c = 0; c < count; c++) {
+			if (minutiae[c] < 0 || minutiae[c] >= 512) {
+				throw new IllegalArgumentException("Invalid minutia direction : " + minutiae[c]);
+			}
+			bits = (bits << 9) | minutiae[c];
+			bitCount += 9;
+			while (bitCount >= 8) {
+				bitCount -= 8;
+				out.write(bits >> bitCount);
+				bits &= (1 << bitCount) - 1;
+			}
+		}
+		if (bitCount > 0) {
+			out.write(bits << (8 - bitCount));
 		}
+
+		for (int c = 0; c < count; c++) {
+			int base = c * CYLINDER_SIZE;
+			if ((flags[c / 8] & (0x80 >> (c % 8))) == 0) {
+				out.write(template, base, CYLINDER_SIZE);
+				continue;
+			}
+			byte[] mask = new byte[MASK_SIZE];
+			for (int i = 0; i < CYLINDER_SIZE; i++) {
+				if (template[base + i] != EMPTY) {
+					mask[i / 8] |= 0x80 >> (i % 8);
+				}
+			}
+			out.write(mask, 0, MASK_SIZE);
+			for (int i = 0; i < CYLINDER_SIZE; i++) {
+				if (template[base + i] != EMPTY) {
+					out.write(template[base + i]);
+				}
+			}
+		}
+		return out.toByteArray();
 	}
 
 	/**
 	 * This method enroll a user's minutiae and transformed template by sending
 	 * an enrollment command to the smart card
-	 * @param apdu, the APDU request to be sent
 	 * @param file Fingerprint file location on the disk (will change by the data
+	 * @param randomizeKey true to transform the template with another key than the default one
 	 * @throws IOException if there is an Input/Ouptut problem with the template file
 	 * @throws CadTransportException if there is a communication error with the smart card
 	 */
-	private static void enrollUser(Apdu apdu, File file, boolean randomizeKey) throws IOException, CadTransportException {
+	public void enrollUser(File file, boolean randomizeKey) throws IOException, CadTransportException {
+		Apdu apdu = new Apdu();
+		apdu.command[Apdu.CLA] = CLA_MONAPPLET;
+		apdu.setLe(0x7f);
+		// the enrolled user is unknown until both uploads succeed
+		enrolledFile = null;
 		//Enroll user template
 		load_template_on_card(apdu, true, file, randomizeKey);
-		if (apdu.getStatus() == 0x9000) {
+		boolean enrolled = apdu.getStatus() == 0x9000;
+		if (enrolled) {
 			//			System.out.println("\t# -- user template enrolled --");
 		} else {
-			System.out.println("\t# -- user template failed --");
+			System.err.println("\t# -- user template failed --");
 		}
 		//Enroll user minutiae
 		load_minutiae_on_card(apdu, true, file);
 		if (apdu.getStatus() == 0x9000) {
 			//			System.out.println("\t# -- user minutiae enrolled --");
 		} else {
-			System.out.println("\t# -- user minutiae failed --");
+			System.err.println("\t# -- user minutiae failed --");
+			enrolled = false;
+		}
+		if (enrolled) {
+			enrolledFile = file.getAbsoluteFile();
+			enrolledRandomKey = randomizeKey;
+		}
+	}
+
+	/**
+	 * Enrolls a user, unless the same impression is already enrolled on the card
+	 * @param file Fingerprint file location on the disk (will change by the data
+	 * @param randomizeKey true to transform the template with another key than the default one
+	 * @return true if the user has been enrolled, false if the enrollment was cached
+	 * @throws IOException if there is an Input/Ouptut problem with the template file
+	 * @throws CadTransportException if there is a communication error with the smart card
+	 */
+	public boolean enrollIfNeeded(File file, boolean randomizeKey) throws IOException, CadTransportException {
+		if (file.getAbsoluteFile().equals(enrolledFile) && randomizeKey == enrolledRandomKey) {
+			return false;
 		}
+		enrollUser(file, randomizeKey);
+		return true;
+	}
+
+	/**
+	 * @return the fingerprint file of the user enrolled on the card, null if none
+	 */
+	public File getEnrolledFile() {
+		return enrolledFile;
 	}
 
 	/**
@@ -405,9 +544,8 @@ public class JavaCardReader {
 	 * @param file the fingerprint file location
 	 * @return a short array containing minutation directions
 	 */
-	private static short[] acquire_minutia(File file) {
-		ScoreTest cWatch = new ScoreTest();
-		return cWatch.getMinutiaDirFromFile(file);
+	private static short[] acquire_minutia(File file) throws IOException {
+		return store.getMinutiaeDir(store.add(file));
 	}
 
 
@@ -417,11 +555,11 @@ public class JavaCardReader {
 	 * @param file The template location on the disk
 	 * @return a byte array containing the transformed template
 	 */
-	private static byte[] acquire_template(File file, boolean different) {
+	private static byte[] acquire_template(File file, boolean different) throws IOException {
 		ScoreTest cWatch = new ScoreTest();
 		ArrayList<Integer> key = ScoreTest.randomKey(different);
 		printkey(key);
-		return cWatch.generateRawTemplate(key, file, 1).clone();
+		return cWatch.generateRawTemplate(key, store.getMinutiae(store.add(file)), 1).clone();
 	}
 
 	private static void printkey(ArrayList<Integer> key) {
@@ -439,6 +577,25 @@ public class JavaCardReader {
 //		System.out.println();
 	}
 
+	/**
+	 * Reads the largest template chunk the applet accepts in one command from
+	 * the response to the SELECT command. Applets that do not announce it only
+	 * accept PACKET_SIZE bytes per command.
+	 * @param select the SELECT command, once exchanged
+	 * @return the length of the template chunks to send
+	 */
+	private static int negotiateChunkSize(Apdu select) {
+		byte[] response = select.getDataOut();
+		if (select.getStatus() != 0x9000 || response == null || response.length < 2) {
+			return PACKET_SIZE;
+		}
+		int size = ((response[0] & 0xff) << 8) | (response[1] & 0xff);
+		if (size < PACKET_SIZE) {
+			return PACKET_SIZE;
+		}
+		return Math.min(size, MAX_EXTENDED_SIZE);
+	}
+
 	/**
 	 * This method extract data from a long byte array
 	 * @param offset the beggining offset to cut
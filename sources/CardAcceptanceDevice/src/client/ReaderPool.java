@@ -0,0 +1,163 @@
+package client;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import utils.ScoreTest;
+
+import com.sun.javacard.apduio.CadTransportException;
+
+/**
+ * Pool of card sessions, one per card (simulator port or reader slot). Every
+ * session is driven by its own thread : the commands sent to a card are
+ * serialized, while the cards work concurrently. Enrollments and verifications
+ * are queued on the session of a slot and their results returned as futures.
+ * @author Jonathan Cheseaux (jonathan.cheseaux@epfl.ch)
+ *
+ */
+public class ReaderPool {
+
+	/** the sessions, one per slot **/
+	private ArrayList<JavaCardReader> readers = new ArrayList<JavaCardReader>();
+	/** the thread of each session **/
+	private ArrayList<ExecutorService> executors = new ArrayList<ExecutorService>();
+
+	/**
+	 * Opens a session with every card
+	 * @param host host of the cards
+	 * @param ports port of each card, one slot per port
+	 * @throws IOException if a connection fails or an applet cannot be selected
+	 * @throws CadTransportException if there is a communication error with a smart card
+	 */
+	public ReaderPool(String host, int[] ports) throws IOException, CadTransportException {
+		try {
+			for (int port : ports) {
+				readers.add(new JavaCardReader(host, port));
+				executors.add(Executors.newSingleThreadExecutor());
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		} catch (CadTransportException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the number of slots
+	 */
+	public int size() {
+		return readers.size();
+	}
+
+	/**
+	 * Queues the enrollment of a user on the card of a slot
+	 * @param slot the slot
+	 * @param file Fingerprint file location on the disk (will change by the data acquired from the CAD)
+	 * @param randomizeKey true to transform the template with another key than the default one
+	 * @return the future completed once the user is enrolled
+	 */
+	public Future<Void> enroll(int slot, final File file, final boolean randomizeKey) {
+		final JavaCardReader reader = readers.get(slot);
+		return executors.get(slot).submit(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException, CadTransportException {
+				reader.enrollUser(file, randomizeKey);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Queues the verification of a challenger against the user enrolled on the card of a slot
+	 * @param slot the slot
+	 * @param file Fingerprint file location on the disk (will change by the data acquired from the CAD)
+	 * @param randomizeKey true to transform the template with another key than the enrolled one
+	 * @return the future matching score, between 0.0 and 1.0, failing with a
+	 *         {@link CardStatusException} if the card rejects the verification
+	 */
+	public Future<Double> verify(int slot, final File file, final boolean randomizeKey) {
+		final JavaCardReader reader = readers.get(slot);
+		return executors.get(slot).submit(new Callable<Double>() {
+			@Override
+			public Double call() throws IOException, CadTransportException {
+				return reader.verifyChallenger(file, randomizeKey);
+			}
+		});
+	}
+
+	/**
+	 * Waits for the queued commands, then closes every session
+	 */
+	public void close() {
+		for (int slot = 0; slot < readers.size(); slot++) {
+			final JavaCardReader reader = readers.get(slot);
+			ExecutorService executor = executors.get(slot);
+			// the session is closed by its own thread, after the commands already queued
+			executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					reader.close();
+					return null;
+				}
+			});
+			executor.shutdown();
+		}
+		readers.clear();
+		executors.clear();
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.out.println("Usage : readerpool <first port> <readers> <enrolled file> [challenger folder] [key (0 = same key, 1 = different key)]");
+			System.exit(-1);
+		}
+		int firstPort = Integer.parseInt(args[0]);
+		int[] ports = new int[Integer.parseInt(args[1])];
+		for (int i = 0; i < ports.length; i++) {
+			ports[i] = firstPort + i;
+		}
+		File enrolled = new File(args[2]);
+		boolean differentKey = args.length > 4 && Integer.parseInt(args[4]) == 1;
+
+		ReaderPool pool = new ReaderPool("localhost", ports);
+		try {
+			ArrayList<Future<Void>> enrollments = new ArrayList<Future<Void>>();
+			for (int slot = 0; slot < pool.size(); slot++) {
+				enrollments.add(pool.enroll(slot, enrolled, differentKey));
+			}
+			for (Future<Void> enrollment : enrollments) {
+				enrollment.get();
+			}
+
+			// the challengers are spread over the cards, which all hold the same user
+			ScoreTest cWatch = new ScoreTest();
+			cWatch.walk(args.length > 3 ? args[3] : enrolled.getParent());
+			ArrayList<File> challengers = cWatch.getTemplates();
+			ArrayList<Future<Double>> scores = new ArrayList<Future<Double>>();
+			long start = System.currentTimeMillis();
+			for (int i = 0; i < challengers.size(); i++) {
+				scores.add(pool.verify(i % pool.size(), challengers.get(i), differentKey));
+			}
+			for (int i = 0; i < challengers.size(); i++) {
+				try {
+					System.out.println(enrolled.getName() + ";" + challengers.get(i).getName() + ";" + scores.get(i).get());
+				} catch (ExecutionException e) {
+					// one failed verification does not stop the others
+					System.err.println(challengers.get(i).getName() + " : " + e.getCause());
+				}
+			}
+			System.out.println(challengers.size() + " verifications on " + pool.size() + " cards in "
+					+ (System.currentTimeMillis() - start) + " ms");
+		} finally {
+			pool.close();
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of equally sized direct byte buffers, so that reading many small
+ * files does not allocate (and later free) one native buffer per file.
+ * Thread-safe.
+ * @author Jonathan Cheseaux (cheseauxjonathan@gmail.com)
+ *
+ */
+public class DirectBufferPool {
+
+	/** Pool shared by default, large enough for any FVC .ist file **/
+	private static final DirectBufferPool shared = new DirectBufferPool(64 * 1024, 16);
+
+	/** capacity of the buffers **/
+	private final int bufferSize;
+	/** maximum number of idle buffers kept **/
+	private final int maxIdle;
+	/** idle buffers **/
+	private final ArrayDeque<ByteBuffer> idle = new ArrayDeque<ByteBuffer>();
+
+	/**
+	 * Initialization constructor.
+	 * @param bufferSize capacity of the buffers
+	 * @param maxIdle maximum number of idle buffers kept in the pool
+	 */
+	public DirectBufferPool(int bufferSize, int maxIdle) {
+		this.bufferSize = bufferSize;
+		this.maxIdle = maxIdle;
+	}
+
+	/**
+	 * Returns the pool shared by default
+	 * @return the shared pool
+	 */
+	public static DirectBufferPool getShared() {
+		return shared;
+	}
+
+	/**
+	 * Takes a cleared buffer from the pool, or allocates a new one if none is idle
+	 * @return a buffer of getBufferSize() bytes
+	 */
+	public synchronized ByteBuffer acquire() {
+		ByteBuffer buffer = idle.poll();
+		if (buffer == null) {
+			buffer = ByteBuffer.allocateDirect(bufferSize);
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Gives a buffer back to the pool
+	 * @param buffer a buffer obtained from {@link #acquire()}
+	 */
+	public synchronized void release(ByteBuffer buffer) {
+		if (buffer.capacity() == bufferSize && idle.size() < maxIdle) {
+			idle.push(buffer);
+		}
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+}
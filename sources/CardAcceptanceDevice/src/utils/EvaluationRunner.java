@@ -0,0 +1,181 @@
+package utils;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import biometrics.LSSMatcher;
+import biometrics.MinutiaeStore;
+import biometrics.PackedTemplate;
+
+/**
+ * Genuine/impostor evaluation of a fingerprint database with the host-side
+ * LSS matcher, which returns the same scores as the card. The impressions
+ * are read and their templates computed once, then every pair is scored in
+ * parallel, one task per enrolled impression, and the scores are streamed
+ * into a single CSV file (enrolled;challenger;genuine;score).
+ * Two impressions are genuine when they have the same finger in their FVC
+ * file name (finger_impression.ist).
+ * @author Jonathan Cheseaux (cheseauxjonathan@gmail.com)
+ *
+ */
+public class EvaluationRunner {
+
+	/** the impressions of the database **/
+	private MinutiaeStore store = new MinutiaeStore();
+	/** finger of each impression **/
+	private String[] fingers;
+	/** enrolled templates, transformed with the enrollment key **/
+	private PackedTemplate[] enrolled;
+	/** challenger templates, transformed with the challenger key **/
+	private PackedTemplate[] challengers;
+	/** true if the challengers use another key than the enrolled templates **/
+	private boolean differentKey;
+
+	/**
+	 * Reads every impression of a folder and computes its templates
+	 * @param path the database folder, browsed recursively
+	 * @param differentKey true to transform the challengers with another key than the enrolled templates
+	 * @throws IOException if an impression cannot be read
+	 */
+	public EvaluationRunner(String path, boolean differentKey) throws IOException {
+		this(path, differentKey, 0);
+	}
+
+	/**
+	 * Reads every impression of a folder and computes its templates
+	 * @param path the database folder, browsed recursively
+	 * @param differentKey true to transform the challengers with another key than the enrolled templates
+	 * @param lookupSteps resolution of the contribution lookup tables, 0 for the exact contributions
+	 * @throws IOException if an impression cannot be read
+	 */
+	public EvaluationRunner(String path, boolean differentKey, int lookupSteps) throws IOException {
+		this.differentKey = differentKey;
+		int size = store.addDirectory(path);
+		ScoreTest generator = new ScoreTest();
+		generator.useLookupTables(lookupSteps);
+		ArrayList<Integer> enrollKey = ScoreTest.randomKey(false);
+		ArrayList<Integer> challengerKey = ScoreTest.randomKey(differentKey);
+		fingers = new String[size];
+		enrolled = new PackedTemplate[size];
+		challengers = differentKey ? new PackedTemplate[size] : enrolled;
+		for (int i = 0; i < size; i++) {
+			fingers[i] = finger(store.getFile(i).getName());
+			short[] directions = store.getMinutiaeDir(i);
+			enrolled[i] = new PackedTemplate(generator.generateRawTemplate(enrollKey, store.getMinutiae(i), 1), directions);
+			if (differentKey) {
+				challengers[i] = new PackedTemplate(generator.generateRawTemplate(challengerKey, store.getMinutiae(i), 1), directions);
+			}
+		}
+	}
+
+	public int size() {
+		return fingers.length;
+	}
+
+	/**
+	 * Scores every pair of impressions and writes the scores. With the same key
+	 * the score is symmetric and each pair is scored once, otherwise every
+	 * ordered pair of distinct impressions is scored.
+	 * @param out the output CSV file
+	 * @param executor the executor scoring the rows
+	 * @return the number of scores written
+	 * @throws IOException if the output file cannot be written
+	 * @throws InterruptedException if interrupted while waiting for a row
+	 * @throws ExecutionException if the scoring of a row failed
+	 */
+	public long run(String out, ExecutorService executor) throws IOException, InterruptedException, ExecutionException {
+		final int size = size();
+		ArrayList<Future<int[]>> rows = new ArrayList<Future<int[]>>(size);
+		for (int i = 0; i < size; i++) {
+			final int row = i;
+			rows.add(executor.submit(new Callable<int[]>() {
+				@Override
+				public int[] call() {
+					LSSMatcher matcher = new LSSMatcher();
+					int[] scores = new int[size];
+					for (int j = first(row); j < size; j++) {
+						if (j != row) {
+							scores[j] = matcher.match(enrolled[row], challengers[j]);
+						}
+					}
+					return scores;
+				}
+			}));
+		}
+
+		long count = 0;
+		PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(out)));
+		try {
+			writer.println("enrolled;challenger;genuine;score");
+			// rows are written in order as soon as they are done, and released
+			for (int i = 0; i < size; i++) {
+				int[] scores = rows.get(i).get();
+				rows.set(i, null);
+				String name = store.getFile(i).getName();
+				for (int j = first(i); j < size; j++) {
+					if (j != i) {
+						writer.println(name + ";" + store.getFile(j).getName() + ";"
+								+ (fingers[i].equals(fingers[j]) ? 1 : 0) + ";" + LSSMatcher.normalize(scores[j]));
+						count++;
+					}
+				}
+			}
+		} finally {
+			writer.close();
+		}
+		if (writer.checkError()) {
+			throw new IOException("Failed to write " + out);
+		}
+		return count;
+	}
+
+	/**
+	 * First challenger scored against an enrolled impression
+	 * @param row index of the enrolled impression
+	 * @return row + 1 when the score is symmetric, 0 otherwise
+	 */
+	private int first(int row) {
+		return differentKey ? 0 : row + 1;
+	}
+
+	/**
+	 * Extracts the finger of an impression file name (101_1.ist is the impression 1 of finger 101)
+	 * @param name the file name
+	 * @return the finger
+	 */
+	public static String finger(String name) {
+		int separator = name.lastIndexOf('_');
+		return separator > 0 ? name.substring(0, separator) : name;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.out.println("Usage : evaluationrunner <folder> <output.csv> [key (0 = same key, 1 = different key)] [threads] [lookup steps (0 = exact)]");
+			System.exit(-1);
+		}
+		boolean differentKey = args.length > 2 && Integer.parseInt(args[2]) == 1;
+		int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+		int lookupSteps = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+
+		long start = System.currentTimeMillis();
+		EvaluationRunner runner = new EvaluationRunner(args[0], differentKey, lookupSteps);
+		System.out.println(runner.size() + " impressions, templates computed in " + (System.currentTimeMillis() - start) + " ms");
+
+		start = System.currentTimeMillis();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			long count = runner.run(args[1], executor);
+			System.out.println(count + " scores written in " + (System.currentTimeMillis() - start) + " ms");
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package utils;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import biometrics.MCCBase;
+import biometrics.Minutia;
+import biometrics.ReadMinutiaFromISOFile;
+
+/**
+ * Micro-benchmark of the cylinder computation (MCCBase.computeTemplate) over
+ * every .ist file of a folder, for the scalar, lane and vector kernels (the
+ * vector kernel needs --add-modules jdk.incubator.vector, see {@link KernelCheck})
+ * @author Jonathan Cheseaux (cheseauxjonathan@gmail.com)
+ *
+ */
+public class ExtractionBenchmark {
+
+	private final static int ns = 16;
+	private final static int nd = 8;
+	private final static int r = 75;
+	private final static double sigmaS = 6;
+	private final static double sigmaD = 0.43633231299858238;
+
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.out.println("Usage : extractionbenchmark <folder> [rounds]");
+			System.exit(-1);
+		}
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+		ScoreTest cWatch = new ScoreTest();
+		cWatch.walk(args[0]);
+		ArrayList<ArrayList<Minutia>> fingerprints = new ArrayList<ArrayList<Minutia>>();
+		for (File file : cWatch.getTemplates()) {
+			ReadMinutiaFromISOFile parser = new ReadMinutiaFromISOFile(file.getAbsolutePath());
+			parser.process();
+			fingerprints.add(parser.getMinutiae());
+		}
+		System.out.println(fingerprints.size() + " fingerprints, " + rounds + " rounds");
+
+		// first pass of each kernel only warms the JIT up
+		for (int pass = 0; pass < 2; pass++) {
+			System.out.println("scalar kernel : " + run(fingerprints, rounds, 0) + " us/template");
+			System.out.println("lane kernel : " + run(fingerprints, rounds, 1) + " us/template");
+			System.out.println("vector kernel : " + run(fingerprints, rounds, 2) + " us/template");
+		}
+	}
+
+	/**
+	 * Computes every template rounds times
+	 * @param fingerprints the minutiae of the fingerprints
+	 * @param rounds number of times each template is computed
+	 * @param kernel 0 for the scalar kernel, 1 for the lane kernel, 2 for the vector kernel
+	 *        (the lane kernel when the Vector API is not available)
+	 * @return the mean computation time of a template in microseconds
+	 */
+	private static long run(ArrayList<ArrayList<Minutia>> fingerprints, int rounds, int kernel) {
+		double checksum = 0;
+		long start = System.nanoTime();
+		for (int round = 0; round < rounds; round++) {
+			for (ArrayList<Minutia> minutiae : fingerprints) {
+				MCCBase engine = new MCCBase(ns, nd, r, minutiae, sigmaS, sigmaD);
+				if (kernel == 2) {
+					engine.useVectorKernel();
+				} else {
+					engine.useLaneKernel(kernel == 1);
+				}
+				double[] block = engine.computeFlatTemplate();
+				checksum += block[block.length / 2];
+			}
+		}
+		long duration = System.nanoTime() - start;
+		if (checksum == -1) {
+			System.out.println(checksum); // keeps the computations alive
+		}
+		return duration / 1000 / Math.max(1, rounds * fingerprints.size());
+	}
+}
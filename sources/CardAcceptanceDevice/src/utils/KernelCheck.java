@@ -0,0 +1,105 @@
+package utils;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import biometrics.MCCBase;
+import biometrics.Minutia;
+import biometrics.ReadMinutiaFromISOFile;
+
+/**
+ * Checks that the scalar, lane and vector kernels of MCCBase compute the same
+ * cylinders, bit for bit, for every .ist file of a folder, with the exact
+ * contributions and with the lookup tables. The vector kernel needs the
+ * incubator module : java --add-modules jdk.incubator.vector utils.KernelCheck res
+ * Exits with status 1 on any mismatch, 2 if the vector kernel cannot be loaded.
+ * @author Jonathan Cheseaux (cheseauxjonathan@gmail.com)
+ *
+ */
+public class KernelCheck {
+
+	private final static int ns = 16;
+	private final static int nd = 8;
+	private final static int r = 75;
+	private final static double sigmaS = 6;
+	private final static double sigmaD = 0.43633231299858238;
+	/** resolution of the lookup tables of the second mode **/
+	private final static int lookupSteps = 1024;
+
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.out.println("Usage : kernelcheck <folder>");
+			System.exit(-1);
+		}
+		ScoreTest cWatch = new ScoreTest();
+		cWatch.walk(args[0]);
+		ArrayList<File> files = cWatch.getTemplates();
+
+		int mismatches = 0;
+		for (File file : files) {
+			ReadMinutiaFromISOFile parser = new ReadMinutiaFromISOFile(file.getAbsolutePath());
+			parser.process();
+			ArrayList<Minutia> minutiae = parser.getMinutiae();
+			for (int steps : new int[] { 0, lookupSteps }) {
+				String mode = steps == 0 ? "exact" : "lookup " + steps;
+				double[] scalar = compute(minutiae, steps, 0);
+				double[] lanes = compute(minutiae, steps, 1);
+				double[] vector = compute(minutiae, steps, 2);
+				if (vector == null) {
+					System.out.println("The vector kernel is not available, run with --add-modules jdk.incubator.vector");
+					System.exit(2);
+				}
+				mismatches += compare(file.getName() + " (" + mode + ") lane", scalar, lanes);
+				mismatches += compare(file.getName() + " (" + mode + ") vector", scalar, vector);
+			}
+		}
+		System.out.println(files.size() + " fingerprints checked, " + mismatches + " mismatches");
+		if (mismatches > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Computes the cylinders of a fingerprint
+	 * @param minutiae the minutiae of the fingerprint
+	 * @param steps resolution of the lookup tables, 0 for the exact contributions
+	 * @param kernel 0 for the scalar kernel, 1 for the lane kernel, 2 for the vector kernel
+	 * @return the cylinders, null if the vector kernel is not available
+	 */
+	private static double[] compute(ArrayList<Minutia> minutiae, int steps, int kernel) {
+		MCCBase engine = new MCCBase(ns, nd, r, minutiae, sigmaS, sigmaD);
+		if (steps > 0) {
+			engine.useLookupTables(steps, steps);
+		}
+		if (kernel == 1) {
+			engine.useLaneKernel(true);
+		} else if (kernel == 2 && !engine.useVectorKernel()) {
+			return null;
+		}
+		return engine.computeFlatTemplate();
+	}
+
+	/**
+	 * Compares two cylinder sets bit for bit
+	 * @param label label of the comparison, printed on a mismatch
+	 * @param expected the cylinders of the scalar kernel
+	 * @param actual the cylinders of the checked kernel
+	 * @return the number of mismatching cells
+	 */
+	private static int compare(String label, double[] expected, double[] actual) {
+		int mismatches = 0;
+		for (int i = 0; i < Math.min(expected.length, actual.length); i++) {
+			if (Double.doubleToLongBits(expected[i]) != Double.doubleToLongBits(actual[i])) {
+				if (mismatches == 0) {
+					System.out.println(label + " : cell " + i + " is " + actual[i] + " instead of " + expected[i]);
+				}
+				mismatches++;
+			}
+		}
+		if (expected.length != actual.length) {
+			System.out.println(label + " : " + actual.length + " cells instead of " + expected.length);
+			mismatches++;
+		}
+		return mismatches;
+	}
+}
@@ -0,0 +1,123 @@
+package utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import biometrics.GalleryIndex;
+import biometrics.IdentificationEngine;
+import biometrics.IdentificationEngine.Candidate;
+import biometrics.MinutiaeStore;
+import biometrics.PackedTemplate;
+import biometrics.TemplateGallery;
+
+/**
+ * Penetration rate versus accuracy of the {@link GalleryIndex} pre-filtering.
+ * Every impression of a folder (FVC naming : finger_impression.ist) is enrolled,
+ * then used in turn as a probe against all the other ones (leave-one-out).
+ * For each shortlist size, prints the fraction of the gallery actually scored,
+ * the fraction of probes keeping at least one mate in the shortlist and the
+ * rank-1 identification rate, compared with the exhaustive search.
+ * @author Jonathan Cheseaux (cheseauxjonathan@gmail.com)
+ *
+ */
+public class PrefilterBenchmark {
+
+	private final static double[] PENETRATIONS = {0.05, 0.1, 0.2, 0.3, 0.5, 0.75, 1};
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.out.println("Usage : prefilterbenchmark <folder>");
+			System.exit(-1);
+		}
+		MinutiaeStore store = new MinutiaeStore();
+		store.addDirectory(args[0]);
+		int size = store.size();
+		if (size < 2) {
+			System.out.println("At least two impressions are required");
+			System.exit(-1);
+		}
+
+		ScoreTest generator = new ScoreTest();
+		ArrayList<Integer> key = ScoreTest.randomKey(false);
+		TemplateGallery gallery = new TemplateGallery();
+		PackedTemplate[] probes = new PackedTemplate[size];
+		String[] fingers = new String[size];
+		for (int i = 0; i < size; i++) {
+			probes[i] = new PackedTemplate(generator.generateRawTemplate(key, store.getMinutiae(i), 1), store.getMinutiaeDir(i));
+			fingers[i] = EvaluationRunner.finger(store.getFile(i).getName());
+			gallery.add(fingers[i], probes[i]);
+		}
+		IdentificationEngine engine = new IdentificationEngine(gallery);
+		GalleryIndex index = new GalleryIndex(gallery);
+		System.out.println(size + " impressions");
+
+		int[] exhaustive = new int[size];
+		for (int i = 0; i < size; i++) {
+			exhaustive[i] = bestOther(engine.identify(probes[i], 2), i);
+		}
+		System.out.println("exhaustive search : rank-1 " + rate(exhaustive, fingers, size));
+
+		System.out.println("penetration;mates kept;rank-1;same rank-1 as exhaustive;us/probe");
+		int[] entries = new int[size];
+		for (double penetration : PENETRATIONS) {
+			// the probe itself is in the gallery, usually at distance 0 : one more place is given
+			// for it, but entries with the same histograms can still take it, so the probe is
+			// excluded explicitly from the mates kept and from the best candidates below
+			int shortlist = 1 + Math.max(1, (int) Math.round(penetration * (size - 1)));
+			int kept = 0;
+			int same = 0;
+			int[] filtered = new int[size];
+			long start = System.nanoTime();
+			for (int i = 0; i < size; i++) {
+				filtered[i] = bestOther(engine.identify(probes[i], 2, index, shortlist), i);
+			}
+			long duration = System.nanoTime() - start;
+			for (int i = 0; i < size; i++) {
+				int count = index.shortlist(probes[i], shortlist, entries);
+				for (int e = 0; e < count; e++) {
+					if (entries[e] != i && fingers[entries[e]].equals(fingers[i])) {
+						kept++;
+						break;
+					}
+				}
+				if (filtered[i] == exhaustive[i]) {
+					same++;
+				}
+			}
+			System.out.println((shortlist - 1) / (double) (size - 1) + ";" + kept / (double) size + ";"
+					+ rate(filtered, fingers, size) + ";" + same / (double) size + ";" + duration / 1000 / size);
+		}
+	}
+
+	/**
+	 * Returns the best candidate which is not the probe itself
+	 * @param candidates the two best candidates
+	 * @param probe index of the probe in the gallery
+	 * @return the gallery index of the candidate, -1 if none
+	 */
+	private static int bestOther(Candidate[] candidates, int probe) {
+		for (Candidate c : candidates) {
+			if (c.getIndex() != probe) {
+				return c.getIndex();
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Rank-1 identification rate
+	 * @param best best candidate of each probe
+	 * @param fingers finger of each impression
+	 * @param size number of probes
+	 * @return fraction of the probes whose best candidate is the same finger
+	 */
+	private static double rate(int[] best, String[] fingers, int size) {
+		int correct = 0;
+		for (int i = 0; i < size; i++) {
+			if (best[i] >= 0 && fingers[best[i]].equals(fingers[i])) {
+				correct++;
+			}
+		}
+		return correct / (double) size;
+	}
+}
@@ -12,6 +12,7 @@ import java.util.Collections;
 import biometrics.MCCBase;
 import biometrics.Minutia;
 import biometrics.ReadMinutiaFromISOFile;
+import biometrics.SecureTemplateGenerator;
 
 /**
  * This class analyze different scenario of genuine/impostors score
@@ -29,6 +30,21 @@ public class ScoreTest {
 
 	private final static ArrayList<Integer> uniqueKey = genRandomKey(ns*ns*nd);
 
+	/** sampling intervals of the contribution lookup tables, 0 for the exact contributions **/
+	private int lookupSteps = 0;
+
+	/**
+	 * Computes the following templates with tabulated contributions (see
+	 * {@link MCCBase#useLookupTables(int, int)}) instead of the exact ones
+	 * @param steps number of sampling intervals of each table, 0 to go back to the exact contributions
+	 */
+	public void useLookupTables(int steps) {
+		if (steps < 0) {
+			throw new IllegalArgumentException("Lookup table resolution must be positive");
+		}
+		this.lookupSteps = steps;
+	}
+
 	/**
 	 * Extract miniutiae from a IST finger impression file
 	 * @param file the IST file
@@ -55,13 +71,30 @@ public class ScoreTest {
 	 * @return a list containing the floating point values of the template
 	 */
 	public byte[] generateRawTemplate(ArrayList<Integer> key, File file, int flag) {
+		return generateRawTemplate(key, getMinutiaFromFile(file), flag);
+	}
+
+	/**
+	 * This method compute the MCC and transform the result into a secured template
+	 * @param key, the key for the transformation
+	 * @param minutiae1 the minutiae of the user's finger impression
+	 * @param flag if 1, use binary quantization, else use real numbers
+	 * @return a list containing the floating point values of the template
+	 */
+	public byte[] generateRawTemplate(ArrayList<Integer> key, ArrayList<Minutia> minutiae1, int flag) {
 
 		int r = 75;	 // radius of cylinder
 		double sigmaS = 6; // sigma for Gaussian used to smooth spatial contributions
 		double sigmaD = 0.43633231299858238; // sigma for Gaussian used to smooth directional contributions
 
-		ArrayList<Minutia> minutiae1 = getMinutiaFromFile(file);
 		MCCBase engine = new MCCBase(ns, nd, r, minutiae1, sigmaS, sigmaD);
+		if (lookupSteps > 0) {
+			engine.useLookupTables(lookupSteps, lookupSteps);
+		}
+		if (flag == 1) {
+			// binarized output, no need to keep the real-valued template
+			return new SecureTemplateGenerator(engine, key, 5000, 1000000).generate();
+		}
 		ArrayList<double[]> linTemplate1 = engine.computeTemplate();
 
 		byte[] result = engine.transform(linTemplate1, key, flag, 5000, 1000000);
@@ -62,6 +62,42 @@ public class Utils {
 		return count;
      }
 	
+	/**
+	 * Number of 1's of a packed bits array (as produced by bitsArrayToByte), counted
+	 * 64 bits at a time. Host-side mirror of monpackage.Util.packedNorm.
+	 * @param tab the packed bits
+	 * @param offset index of the first byte
+	 * @param length number of bytes
+	 * @return the number of 1's
+	 */
+	public static int packedNorm(byte[] tab, int offset, int length) {
+		int count = 0;
+		int i = offset;
+		int end = offset + length;
+		for (; i + 8 <= end; i += 8) {
+			// flip the +128 bias of every byte
+			count += Long.bitCount(getLong(tab, i) ^ 0x8080808080808080L);
+		}
+		for (; i < end; i++) {
+			count += Integer.bitCount((tab[i] ^ 0x80) & 0xFF);
+		}
+		return count;
+	}
+
+	/**
+	 * Reads 8 bytes as a big-endian long
+	 * @param tab the bytes
+	 * @param offset index of the first byte
+	 * @return the 64-bit word
+	 */
+	static long getLong(byte[] tab, int offset) {
+		long word = 0;
+		for (int i = 0; i < 8; i++) {
+			word = (word << 8) | (tab[offset + i] & 0xFF);
+		}
+		return word;
+	}
+
 	/**
 	 * Debug method for printing a binary representation of a byte
 	 * @param b
@@ -0,0 +1,212 @@
+package monpackage;
+
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+
+/**
+ * Streaming decoder of the compact challenger frame. The frame is made of :
+ * <ul>
+ * <li>the number n of cylinders (1 byte)</li>
+ * <li>the sparse flags, one bit per cylinder, most significant bit first (ceil(n/8) bytes)</li>
+ * <li>the minutiae directions in degrees, 9 bits each, most significant bit first (ceil(9n/8) bytes)</li>
+ * <li>the cylinders, one after the other. A plain cylinder is sent as is (128 bytes); a sparse
+ * cylinder is sent as a 16 bytes mask of its non-empty bytes followed by these bytes only
+ * (an empty byte holds no bit set, i.e. 0x80 once biased)</li>
+ * </ul>
+ * The frame may be split anywhere between commands : the bytes are decoded as they
+ * arrive, directly into the template and minutiae arrays.
+ * @author Jonathan Cheseaux (jonathan.cheseaux@epfl.ch)
+ *
+ */
+public class CompactFrameDecoder {
+
+	/** Size of a packed cylinder **/
+	private static final short CYLINDER_SIZE = 128;
+
+	/** Size of the mask of a sparse cylinder **/
+	private static final short MASK_SIZE = 16;
+
+	/** Value of an empty byte of a packed cylinder (no bit set, +128 bias) **/
+	private static final byte EMPTY = (byte) 0x80;
+
+	/** Decoder states **/
+	private static final short S_COUNT = 0;
+	private static final short S_FLAGS = 1;
+	private static final short S_DIRECTIONS = 2;
+	private static final short S_PLAIN = 3;
+	private static final short S_MASK = 4;
+	private static final short S_SPARSE = 5;
+	private static final short S_DONE = 6;
+
+	/** Indexes of the decoder variables in the state array **/
+	private static final short STATE = 0;
+	private static final short COUNT = 1;
+	private static final short POS = 2;
+	private static final short CYLINDER = 3;
+	private static final short BITS = 4;
+	private static final short BIT_COUNT = 5;
+	private static final short STATE_SIZE = 6;
+
+	/** Decoder variables, kept in RAM between the commands of a chain **/
+	private short[] state;
+
+	/** Sparse flags of the cylinders **/
+	private byte[] flags;
+
+	/** Mask of the sparse cylinder being decoded **/
+	private byte[] mask;
+
+	/**
+	 * Builder. Allocates the transient state of the decoder.
+	 * @param maxCylinders the largest number of cylinders of a frame
+	 */
+	public CompactFrameDecoder(short maxCylinders) {
+		state = JCSystem.makeTransientShortArray(STATE_SIZE, JCSystem.CLEAR_ON_DESELECT);
+		flags = JCSystem.makeTransientByteArray((short) ((short) (maxCylinders + 7) / 8), JCSystem.CLEAR_ON_DESELECT);
+		mask = JCSystem.makeTransientByteArray(MASK_SIZE, JCSystem.CLEAR_ON_DESELECT);
+	}
+
+	/**
+	 * Restarts the decoding at the beginning of a frame
+	 */
+	public void reset() {
+		state[STATE] = S_COUNT;
+		state[COUNT] = 0;
+		state[POS] = 0;
+		state[CYLINDER] = 0;
+		state[BITS] = 0;
+		state[BIT_COUNT] = 0;
+	}
+
+	/**
+	 * @return true once a whole frame has been decoded
+	 */
+	public boolean isComplete() {
+		return state[STATE] == S_DONE;
+	}
+
+	/**
+	 * @return the number of cylinders of the frame
+	 */
+	public short getCylinders() {
+		return state[COUNT];
+	}
+
+	/**
+	 * Decodes the next bytes of the frame
+	 * @param src the received bytes
+	 * @param off index of the first byte in src
+	 * @param len number of bytes
+	 * @param template destination of the cylinders
+	 * @param minutiae destination of the directions
+	 */
+	public void decode(byte[] src, short off, short len, byte[] template, short[] minutiae) {
+		// the variables are worked on locally and saved once
+		short s = state[STATE];
+		short count = state[COUNT];
+		short pos = state[POS];
+		short cylinder = state[CYLINDER];
+		short bits = state[BITS];
+		short bitCount = state[BIT_COUNT];
+
+		short end = (short) (off + len);
+		for (; off < end; off++) {
+			byte b = src[off];
+			switch (s) {
+			case S_COUNT:
+				count = (short) (b & 0xFF);
+				if (count > (short) minutiae.length || (short) (count * CYLINDER_SIZE) > (short) template.length) {
+					ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+				}
+				pos = 0;
+				s = count == 0 ? S_DONE : S_FLAGS;
+				break;
+			case S_FLAGS:
+				flags[pos++] = b;
+				if (pos == (short) ((short) (count + 7) / 8)) {
+					pos = 0;
+					bits = 0;
+					bitCount = 0;
+					s = S_DIRECTIONS;
+				}
+				break;
+			case S_DIRECTIONS:
+				bits = (short) ((short) (bits << 8) | (b & 0xFF));
+				bitCount += 8;
+				if (bitCount >= 9) {
+					bitCount -= 9;
+					minutiae[pos++] = (short) ((short) (bits >> bitCount) & 0x1FF);
+					bits &= (short) ((short) (1 << bitCount) - 1);
+				}
+				if (pos == count) {
+					// the remaining bits only pad the last byte
+					cylinder = 0;
+					pos = 0;
+					s = isSparse(cylinder) ? S_MASK : S_PLAIN;
+				}
+				break;
+			case S_PLAIN:
+				template[(short) ((short) (cylinder * CYLINDER_SIZE) + pos)] = b;
+				pos++;
+				if (pos == CYLINDER_SIZE) {
+					cylinder++;
+					pos = 0;
+					s = cylinder == count ? S_DONE : (isSparse(cylinder) ? S_MASK : S_PLAIN);
+				}
+				break;
+			case S_MASK:
+				mask[pos++] = b;
+				if (pos == MASK_SIZE) {
+					pos = skipEmpty(template, cylinder, (short) 0);
+					s = S_SPARSE;
+				}
+				break;
+			case S_SPARSE:
+				template[(short) ((short) (cylinder * CYLINDER_SIZE) + pos)] = b;
+				pos = skipEmpty(template, cylinder, (short) (pos + 1));
+				break;
+			default:
+				// bytes after the end of the frame
+				ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+			}
+			// a sparse cylinder may end on an empty byte, without any byte left to decode
+			if (s == S_SPARSE && pos == CYLINDER_SIZE) {
+				cylinder++;
+				pos = 0;
+				s = cylinder == count ? S_DONE : (isSparse(cylinder) ? S_MASK : S_PLAIN);
+			}
+		}
+
+		state[STATE] = s;
+		state[COUNT] = count;
+		state[POS] = pos;
+		state[CYLINDER] = cylinder;
+		state[BITS] = bits;
+		state[BIT_COUNT] = bitCount;
+	}
+
+	/**
+	 * @param cylinder index of a cylinder
+	 * @return true if the cylinder is sent as a mask and its non-empty bytes
+	 */
+	private boolean isSparse(short cylinder) {
+		return (flags[(short) (cylinder >> 3)] & (short) (0x80 >> (cylinder & 7))) != 0;
+	}
+
+	/**
+	 * Fills the empty bytes of a sparse cylinder up to its next non-empty byte
+	 * @param template the template being decoded
+	 * @param cylinder index of the cylinder
+	 * @param pos index of the first byte to check in the cylinder
+	 * @return the index of the next non-empty byte, CYLINDER_SIZE if none is left
+	 */
+	private short skipEmpty(byte[] template, short cylinder, short pos) {
+		short base = (short) (cylinder * CYLINDER_SIZE);
+		while (pos < CYLINDER_SIZE && (mask[(short) (pos >> 3)] & (short) (0x80 >> (pos & 7))) == 0) {
+			template[(short) (base + pos)] = EMPTY;
+			pos++;
+		}
+		return pos;
+	}
+}
@@ -1,6 +1,8 @@
 package monpackage;
 
 import javacard.framework.APDU;
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
 
 /**
  * This class is responsible for computing fingerprint matching score
@@ -15,6 +17,27 @@ public class LSSMatcher {
 	/** Empirical value used to get rid of the absence of float values **/
 	private static final short PRECISION = 1550;
 
+	/** Largest number of pairs averaged in the global score (maximum of NP_LOOKUP) **/
+	public static final short MAX_NP = 10;
+
+	/** Scratch buffer holding the best local similarities found so far, in descending order **/
+	private short[] top_Gamma;
+
+	/**
+	 * Matcher with its own scratch buffer
+	 */
+	public LSSMatcher() {
+		this(new short[MAX_NP]);
+	}
+
+	/**
+	 * Matcher working in a preallocated scratch buffer (typically a transient array)
+	 * @param topBuffer buffer of at least MAX_NP entries
+	 */
+	public LSSMatcher(short[] topBuffer) {
+		this.top_Gamma = topBuffer;
+	}
+
 	/**
 	 * Computes the angular difference between two given angles t1 and t2
 	 * @param t1
@@ -28,84 +51,80 @@ public class LSSMatcher {
 	}
 
 	/**
-	 * Computes the global similarity score between two MCC templates based on LSS
-	 * @param linTemplate1 (resp. 2) ArrayList containing the cell values of 
-		 all linearized cylinders in template 1 (resp. 2)
-	 * @param external_template 
-	 * @param validities1 (resp. 2) ArrayList containing the validity bits of 
-		 the base cells of all cylinders in template 1 (resp. 2)
-	 * @param external_minutiae (resp. 2) ArrayList of all minutiae involved in template 1 (resp. 2)
-	 * @param external_minutiae2 
+	 * Computes the global similarity score between two MCC templates based on LSS, on the
+	 * packed templates : the Hamming distance of two cylinders is counted with a popcount
+	 * table on the XOR-ed packed bytes instead of expanding every cylinder into 1024 one-bit bytes.
+	 * The cylinder norms are taken from tables computed once per upload (see {@link #computeNorms}).
+	 * Works in place on the templates and in the preallocated scratch buffer, nothing is allocated :
+	 * instead of sorting the similarities of all the pairs, only the nP best ones are kept.
+	 * @param template the user's template
+	 * @param linSize2 number of cylinders of template
+	 * @param external_template the challenger's template
+	 * @param linSize1 number of cylinders of external_template
+	 * @param norms the norm of each cylinder of template
+	 * @param external_norms the norm of each cylinder of external_template
+	 * @param minutiae the user minutiae
+	 * @param external_minutiae the challenger minutiae
 	 * @param DeltaTheta the maximum directional difference between two minutiae 
 		 whose corresponding cylinders are considered "matchable".
-	 * @param apdu 
-	 * @param minME minimum number of matchable elements needed to exist in two matchable cylinders.
-	 * @param minNP minimum number of pairs to be selected for calculating the global score.
-	 * @param maxNP maximum number of pairs to be selected for calculating the global score.
-	 * @return double containing the global score in the range [0,1]; 1 means maximum similarity.
-	 */		
-	public short matchTemplates_LSS(
-			byte[] template, byte[] external_template, short[] minutiae, short[] external_minutiae, short DeltaTheta, APDU apdu){
+	 * @param apdu the APDU being processed
+	 * @return the global score, PRECISION meaning maximum similarity
+	 */
+	public short matchTemplates_LSS_packed(
+			byte[] template, short linSize2, byte[] external_template, short linSize1, short[] norms, short[] external_norms,
+			short[] minutiae, short[] external_minutiae, short DeltaTheta, APDU apdu){
 
 		short score = 0;
-		short linSize1 = (short) (external_template.length / 128);
-		short linSize2 = (short) (template.length / 128);
-
-		short[] sorted_Gamma = new short[linSize1 * linSize2];
-		short l = 0; //counter index for sorted_Gamma
 
 		if(linSize1 >0 && linSize2> 0){
+			if (linSize1 >= (short) NP_LOOKUP.length || linSize2 >= (short) NP_LOOKUP.length) {
+				ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+			}
+			short Z = Util.min(linSize1, linSize2);
+			short nP = NP_LOOKUP[Z];
+			short l = 0; //number of valid entries in top_Gamma
+
 			for (short i = 0; i < linSize1; i++){
+				short offset1 = (short) (i * 128);
+				short direction1 = external_minutiae[i];
+				short norma = external_norms[i];
 				for (short j = 0; j < linSize2; j++){
 
-					byte[] temp1 = new byte[128];
-					byte[] temp2 = new byte[128];
-
-					short norma = 0;
-					short normb = 0;
-
-					for (short m = 0, k = (short) (i * 128); k < (short) (i * 128) + 128; k++, m++) {
-						temp1[m] = external_template[k];
+					// a local similarity is never negative, so a pair scoring 0 (incompatible
+					// directions or empty cylinders) cannot change the sum of the best ones
+					if (angularDiff(direction1, minutiae[j]) > DeltaTheta) {
+						continue;
 					}
-					for (short m = 0, k = (short) (j * 128); k < (short) (j * 128) + 128; k++, m++) {
-						temp2[m] = template[k];
+					short denom1 = (short) (norma + norms[j]);
+					if (denom1 == 0) {
+						continue;
 					}
-					
-					norma = norm(Util.byteArrayToBitsArray(temp1));
-					normb = norm(Util.byteArrayToBitsArray(temp2));
-
-					short denom1 = (short) (norma + normb);
-					short localSim1 = 0;
-
-					if( Util.abs(angularDiff(external_minutiae[i], minutiae[j])) <= DeltaTheta && denom1 != 0){
-						short temp = (short) (PRECISION / denom1);
-						short val = (short) (temp * norm(diff(temp1, temp2)));
-						localSim1 = (short) (PRECISION - val);
+					short offset2 = (short) (j * 128);
+					short temp = (short) (PRECISION / denom1);
+					short val = (short) (temp * Util.packedDistance(external_template, offset1, template, offset2, (short) 128));
+					short localSim1 = (short) (PRECISION - val);
+
+					// only the nP best local similarities are kept, sorted in descending order
+					short k;
+					if (l < nP) {
+						k = l;
+						l++;
+					} else if (localSim1 > top_Gamma[(short) (nP - 1)]) {
+						k = (short) (nP - 1);
+					} else {
+						continue;
 					}
-
-					sorted_Gamma[l] = localSim1;
-					//					bubble sorting the local similarity scores of all possible pairs
-					for (short k = l; k > 0; k--){	
-						if (sorted_Gamma[k] > sorted_Gamma[k-1]){
-							short temp = sorted_Gamma[k];
-							sorted_Gamma[k] = sorted_Gamma[k-1];
-							sorted_Gamma[k-1] = (short) temp;
-
-						}
-						else{
-							break;
-						}
+					for (; k > 0 && top_Gamma[(short) (k - 1)] < localSim1; k--){
+						top_Gamma[k] = top_Gamma[(short) (k - 1)];
 					}
-					l++;
+					top_Gamma[k] = localSim1;
 				}
 			}
 
-			short Z = Util.min(linSize1, linSize2);
-			short nP = NP_LOOKUP[Z];
 			short sum = 0;		
 
-			for (short i=0; i < nP; i++){
-				sum += sorted_Gamma[i];
+			for (short i=0; i < l; i++){
+				sum += top_Gamma[i];
 			}		
 			score = (short) (sum/nP);
 		}
@@ -113,47 +132,35 @@ public class LSSMatcher {
 	}
 
 	/**
-	 * Computes the norm of a byte array
-	 * @param tab
-	 * @return
+	 * Computes the norm (number of 1's) of every cylinder of a packed template
+	 * @param template the packed template, 128 bytes per cylinder
+	 * @param cylinders number of cylinders of the template
+	 * @param norms destination, one entry per cylinder
 	 */
-	private short norm(byte[] tab) {
-		short count = 0;
-		for (byte b : tab) {
-			count += b;
+	public void computeNorms(byte[] template, short cylinders, short[] norms) {
+		for (short c = 0; c < cylinders; c++) {
+			norms[c] = Util.packedNorm(template, (short) (c * 128), (short) 128);
 		}
-		return count;
 	}
 
 	/**
-	 * Initiate the matching process
+	 * Initiate the matching process with precomputed cylinder norms
 	 * @param template the user's template
+	 * @param cylinders number of cylinders of template
 	 * @param external_template the challenger's template
+	 * @param external_cylinders number of cylinders of external_template
+	 * @param norms the cylinder norms of the user's template
+	 * @param external_norms the cylinder norms of the challenger's template
 	 * @param minutiae the user minutiae
 	 * @param external_minutiae the challenger minutiae 
 	 * @param apdu the APDU response to be sent
 	 * @return the matching score
 	 */
-	public short match(byte[] template, byte[] external_template, short[] minutiae, short[] external_minutiae, APDU apdu) {
+	public short match(byte[] template, short cylinders, byte[] external_template, short external_cylinders,
+			short[] norms, short[] external_norms, short[] minutiae, short[] external_minutiae, APDU apdu) {
 		short DeltaTheta = 135;
-		return matchTemplates_LSS(template, external_template, minutiae, external_minutiae, DeltaTheta, apdu);
-	}
-
-	/**
-	 * Computes the bit-wise difference between 2 byte arrays
-	 * @param linCyl1
-	 * @param linCyl2
-	 * @return
-	 */
-	public byte[] diff(byte[] linCyl1, byte[] linCyl2){
-		byte[] bitsA = Util.byteArrayToBitsArray(linCyl1);
-		byte[] bitsB = Util.byteArrayToBitsArray(linCyl2);
-		byte[] res = new byte[bitsA.length];
-		
-		for (int i = 0; i < bitsA.length; i++) {
-			res[i] = (byte) (bitsA[i] != bitsB[i] ? 1 : 0);
-		}
-		return res;
+		return matchTemplates_LSS_packed(template, cylinders, external_template, external_cylinders,
+				norms, external_norms, minutiae, external_minutiae, DeltaTheta, apdu);
 	}
 
-}
\ No newline at end of file
+}
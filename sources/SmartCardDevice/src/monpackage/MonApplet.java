@@ -4,20 +4,27 @@ import javacard.framework.APDU;
 import javacard.framework.Applet;
 import javacard.framework.ISO7816;
 import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
 import javacard.framework.Util;
+import javacardx.apdu.ExtendedLength;
 
 /**
- * Base applet which will be executed on the card
+ * Base applet which will be executed on the card. Templates can be uploaded
+ * with extended length APDUs : the largest chunk accepted in one command is
+ * returned in the response to the SELECT command.
  * @author Jonathan Cheseaux (jonathan.cheseaux@epfl.ch)
  *
  */
-public class MonApplet extends Applet {
+public class MonApplet extends Applet implements ExtendedLength {
 
 	/** Applet instruction class **/
 	public static final byte CLA_MONAPPLET = (byte) 0xB0;
 
-	/** Length of data sent in one APDU request **/
-	public static final short PACKET_SIZE = 100;
+	/** Proprietary class of the verification command, its b5 bit is free for ISO 7816 command chaining **/
+	public static final byte CLA_VERIFY = (byte) 0x80;
+
+	/** Bit of the class byte set on every command of a chain but the last one (ISO 7816-4) **/
+	public static final byte CLA_CHAINING = (byte) 0x10;
 
 	/** Insruction command for setting challenger's template on the card */
 	public static final byte INS_SET_TEMPLATE_CAP = 0x01;
@@ -37,6 +44,21 @@ public class MonApplet extends Applet {
 	/** Insruction command for resetting challenger's template and minutiae*/
 	private static final byte RESET = 0x06;
 
+	/** Insruction command for verifying a challenger : template and minutiae in one (chained) command, then match */
+	public static final byte INS_VERIFY = 0x07;
+
+	/** Same as INS_VERIFY, the challenger being sent as a compact frame (see {@link CompactFrameDecoder}) */
+	public static final byte INS_VERIFY_COMPACT = 0x08;
+
+	/** Maximum number of cylinders (and minutiae) of a template **/
+	public static final short MAX_CYLINDERS = 30;
+
+	/** Size of a packed cylinder **/
+	public static final short CYLINDER_SIZE = 128;
+
+	/** Largest chunk accepted in one command (a whole verification payload), announced at selection **/
+	public static final short MAX_CHUNK_SIZE = (short) (MAX_CYLINDERS * (CYLINDER_SIZE + 2));
+
 	/** The enrollment template **/
 	private byte[] template;
 
@@ -49,20 +71,53 @@ public class MonApplet extends Applet {
 	/** The challenger's minutiae */
 	private short[] external_minutiae;
 
-	/** Challenger current template packet number received **/
-	private short tempCapNumber = 0;
+	/** Number of 1's of each enrolled cylinder, computed once the enrollment template is complete **/
+	private short[] norms;
+
+	/** Number of 1's of each challenger cylinder, computed once the challenger template is complete **/
+	private short[] external_norms;
+
+	/** Number of cylinders of the enrollment template **/
+	private short cylinders = 0;
+
+	/** Number of cylinders of the challenger's template **/
+	private short external_cylinders = 0;
+
+	/** Number of bytes of the challenger template received so far **/
+	private short tempCapOffset = 0;
+
+	/** Number of bytes of the user template received so far **/
+	private short tempEnrollOffset = 0;
+
+	/** Index in verifyState of the number of bytes of the verification payload received so far **/
+	private static final short VERIFY_OFFSET = 0;
 
-	/** User current template packet number received **/
-	private short tempEnrollNumber = 0;
+	/** Index in verifyState of the instruction of the verification chain being received, 0 if none **/
+	private static final short VERIFY_CHAIN = 1;
+
+	/** State of the verification chain, in RAM : a chain does not survive a deselection **/
+	private short[] verifyState;
+
+	/** Decoder of the compact challenger frames **/
+	private CompactFrameDecoder decoder;
 
 	/** The LSSMatcher instance responsible for computing the matching score **/
 	private static LSSMatcher mccBase;
 
 	/**
-	 * Builder
+	 * Builder. Every buffer is allocated here, once for the lifetime of the applet :
+	 * the templates and the enrolled data in EEPROM, the per-verification data in RAM.
 	 */
 	private MonApplet() {
-		mccBase = new LSSMatcher();
+		template = new byte[(short) (MAX_CYLINDERS * CYLINDER_SIZE)];
+		external_template = new byte[(short) (MAX_CYLINDERS * CYLINDER_SIZE)];
+		minutiae = new short[MAX_CYLINDERS];
+		norms = new short[MAX_CYLINDERS];
+		external_minutiae = JCSystem.makeTransientShortArray(MAX_CYLINDERS, JCSystem.CLEAR_ON_DESELECT);
+		external_norms = JCSystem.makeTransientShortArray(MAX_CYLINDERS, JCSystem.CLEAR_ON_DESELECT);
+		mccBase = new LSSMatcher(JCSystem.makeTransientShortArray(LSSMatcher.MAX_NP, JCSystem.CLEAR_ON_DESELECT));
+		decoder = new CompactFrameDecoder(MAX_CYLINDERS);
+		verifyState = JCSystem.makeTransientShortArray((short) 2, JCSystem.CLEAR_ON_DESELECT);
 	}
 
 	/**
@@ -77,26 +132,207 @@ public class MonApplet extends Applet {
 	}
 
 	/**
-	 * Store a data packet on the card
+	 * Copies a template chunk into a preallocated template buffer. The chunk may be
+	 * longer than the APDU buffer (extended length APDU), it is then received block by block.
+	 * @param apdu the APDU request received
+	 * @param dest the template buffer
+	 * @param offset number of bytes of the template already received
+	 * @return the number of bytes of the template received, this chunk included
+	 */
+	private short receiveTemplateChunk(APDU apdu, byte[] dest, short offset) {
+		byte[] rcvd = apdu.getBuffer();
+		short size = Util.makeShort(rcvd[ISO7816.OFFSET_P2], rcvd[ISO7816.OFFSET_P1]);
+		if (size < 0 || size > (short) dest.length) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
+		short read = apdu.setIncomingAndReceive();
+		if (apdu.getIncomingLength() > (short) (size - offset)) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
+		short cdata = apdu.getOffsetCdata();
+		while (read > 0) {
+			Util.arrayCopyNonAtomic(rcvd, cdata, dest, offset, read);
+			offset += read;
+			read = apdu.receiveBytes(cdata);
+		}
+		return offset;
+	}
+
+	/**
+	 * Decodes minutiae directions (2 bytes each, low byte first) into a preallocated array
 	 * @param apdu the APDU request received
-	 * @param dest the destination array
-	 * @param index the index of the current packet treated
+	 * @param dest the directions array
+	 * @return the number of directions received
 	 */
-	public void save_received_buffer(APDU apdu, byte[] dest, short index) {
+	private short receiveMinutiae(APDU apdu, short[] dest) {
 		apdu.setIncomingAndReceive();
 		byte[] rcvd = apdu.getBuffer();
 		short size = Util.makeShort(rcvd[ISO7816.OFFSET_P2], rcvd[ISO7816.OFFSET_P1]);
-		if (dest == null) {
-			dest = new byte[size];
+		short count = (short) (size / 2);
+		if (size < 0 || count > (short) dest.length) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
+		short offset = apdu.getOffsetCdata();
+		for (short k = 0; k < count; k++) {
+			dest[k] = Util.makeShort(rcvd[(short) (offset + 1)], rcvd[offset]);
+			offset += 2;
+		}
+		return count;
+	}
+
+	/**
+	 * Receives a command of a verification chain. The payload is the challenger's template
+	 * (its size in P1/P2) followed by its minutiae directions (2 bytes each, low byte first),
+	 * split over as many commands as needed. The last command of the chain triggers the
+	 * matching; the score is sent back and the challenger's state is reset.
+	 * @param apdu the APDU request received
+	 */
+	private void verify(APDU apdu) {
+		byte[] buffer = apdu.getBuffer();
+		boolean last = (byte) (buffer[ISO7816.OFFSET_CLA] & CLA_CHAINING) == 0;
+		startVerifyChain(INS_VERIFY);
+		short size = Util.makeShort(buffer[ISO7816.OFFSET_P2], buffer[ISO7816.OFFSET_P1]);
+		if (size < 0 || size > (short) external_template.length || (short) (size % CYLINDER_SIZE) != 0) {
+			endVerifyChain();
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
+		short total = (short) (size + 2 * (short) (size / CYLINDER_SIZE));
+
+		short read = apdu.setIncomingAndReceive();
+		if (apdu.getIncomingLength() > (short) (total - verifyState[VERIFY_OFFSET])) {
+			endVerifyChain();
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
+		short cdata = apdu.getOffsetCdata();
+		while (read > 0) {
+			verifyState[VERIFY_OFFSET] = storeVerifyBytes(buffer, cdata, read, size, verifyState[VERIFY_OFFSET]);
+			read = apdu.receiveBytes(cdata);
+		}
+		if (!last) {
+			// wait for the next command of the chain
+			return;
+		}
+
+		short received = verifyState[VERIFY_OFFSET];
+		endVerifyChain();
+		if (received != total) {
+			tempCapOffset = 0;
+			external_cylinders = 0;
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
+		matchChallenger(apdu, (short) (size / CYLINDER_SIZE));
+	}
+
+	/**
+	 * Receives a command of a compact verification chain (see {@link CompactFrameDecoder}).
+	 * The frame is decoded as it arrives; the last command of the chain triggers the
+	 * matching, the score is sent back and the challenger's state is reset.
+	 * @param apdu the APDU request received
+	 */
+	private void verifyCompact(APDU apdu) {
+		byte[] buffer = apdu.getBuffer();
+		boolean last = (byte) (buffer[ISO7816.OFFSET_CLA] & CLA_CHAINING) == 0;
+		startVerifyChain(INS_VERIFY_COMPACT);
+
+		short read = apdu.setIncomingAndReceive();
+		short cdata = apdu.getOffsetCdata();
+		try {
+			while (read > 0) {
+				decoder.decode(buffer, cdata, read, external_template, external_minutiae);
+				read = apdu.receiveBytes(cdata);
+			}
+		} catch (ISOException e) {
+			// a malformed frame ends the chain
+			endVerifyChain();
+			ISOException.throwIt(e.getReason());
 		}
-		short packetSize = PACKET_SIZE;
+		if (!last) {
+			return;
+		}
+
+		boolean complete = decoder.isComplete();
+		short challengerCylinders = decoder.getCylinders();
+		endVerifyChain();
+		if (!complete) {
+			tempCapOffset = 0;
+			external_cylinders = 0;
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
+		matchChallenger(apdu, challengerCylinders);
+	}
+
+	/**
+	 * Starts a new verification chain, unless a chain of the same instruction is
+	 * being received (a chain of another instruction is abandoned by process)
+	 * @param ins the verification instruction of the received command
+	 */
+	private void startVerifyChain(byte ins) {
+		if (verifyState[VERIFY_CHAIN] != ins) {
+			endVerifyChain();
+			verifyState[VERIFY_CHAIN] = ins;
+		}
+	}
 
-		if ((short) (index *  PACKET_SIZE) + PACKET_SIZE >= size) {
-			packetSize = (short) (size - (short) (index *  PACKET_SIZE));
+	/**
+	 * Forgets the verification chain being received, whatever its instruction
+	 */
+	private void endVerifyChain() {
+		verifyState[VERIFY_CHAIN] = 0;
+		verifyState[VERIFY_OFFSET] = 0;
+		decoder.reset();
+	}
+
+	/**
+	 * Matches a completely received challenger against the enrolled user, sends
+	 * the score back and forgets the challenger
+	 * @param apdu the APDU request received
+	 * @param challengerCylinders number of cylinders of the challenger's template
+	 */
+	private void matchChallenger(APDU apdu, short challengerCylinders) {
+		byte[] buffer = apdu.getBuffer();
+		tempCapOffset = 0;
+		external_cylinders = challengerCylinders;
+		mccBase.computeNorms(external_template, external_cylinders, external_norms);
+		short score = mccBase.match(template, cylinders, external_template, external_cylinders,
+				norms, external_norms, minutiae, external_minutiae, apdu);
+		// the challenger is not kept once verified
+		external_cylinders = 0;
+
+		buffer[0] = (byte) (score & 0xFF);
+		buffer[1] = (byte) ((score>>8)&0xFF);
+		apdu.setOutgoingAndSend((short) 0, (short) 2);
+	}
+
+	/**
+	 * Stores bytes of a verification payload in the challenger's template and minutiae
+	 * @param src the received bytes
+	 * @param off index of the first byte in src
+	 * @param len number of bytes
+	 * @param size size of the template
+	 * @param offset number of bytes of the payload already stored
+	 * @return the number of bytes of the payload stored, these ones included
+	 */
+	private short storeVerifyBytes(byte[] src, short off, short len, short size, short offset) {
+		if (offset < size) {
+			short n = (short) (size - offset);
+			if (len < n) {
+				n = len;
+			}
+			Util.arrayCopyNonAtomic(src, off, external_template, offset, n);
+			offset += n;
+			off += n;
+			len -= n;
+		}
+		for (; len > 0; len--, off++, offset++) {
+			short position = (short) (offset - size);
+			short k = (short) (position >> 1);
+			if ((position & 1) == 0) {
+				external_minutiae[k] = (short) (src[off] & 0xFF);
+			} else {
+				external_minutiae[k] |= (short) (src[off] << 8);
+			}
 		}
-		Util.arrayCopy(rcvd, apdu.getOffsetCdata(), dest, (short) (index *  PACKET_SIZE) , packetSize);
-		rcvd[0] = (byte) 69;
-		apdu.setOutgoingAndSend((short) 0, (short) 1);
+		return offset;
 	}
 
 	/**
@@ -105,7 +341,29 @@ public class MonApplet extends Applet {
 	public void process(APDU apdu) throws ISOException {
 		byte[] buffer = apdu.getBuffer();
 
-		if (this.selectingApplet()) return;
+		if (this.selectingApplet()) {
+			// announce the largest template chunk accepted in one command
+			Util.setShort(buffer, (short) 0, MAX_CHUNK_SIZE);
+			apdu.setOutgoingAndSend((short) 0, (short) 2);
+			return;
+		}
+
+		boolean verifyCommand = (byte) (buffer[ISO7816.OFFSET_CLA] & ~CLA_CHAINING) == CLA_VERIFY;
+		if (!verifyCommand || buffer[ISO7816.OFFSET_INS] != verifyState[VERIFY_CHAIN]) {
+			// any other command abandons the verification chain being received
+			endVerifyChain();
+		}
+
+		if (verifyCommand) {
+			if (buffer[ISO7816.OFFSET_INS] == INS_VERIFY) {
+				verify(apdu);
+			} else if (buffer[ISO7816.OFFSET_INS] == INS_VERIFY_COMPACT) {
+				verifyCompact(apdu);
+			} else {
+				ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
+			}
+			return;
+		}
 
 		if (buffer[ISO7816.OFFSET_CLA] != CLA_MONAPPLET) {
 			ISOException.throwIt(ISO7816.SW_CLA_NOT_SUPPORTED);
@@ -114,94 +372,54 @@ public class MonApplet extends Applet {
 		switch (buffer[ISO7816.OFFSET_INS]) {
 
 		case INS_SET_MINUTIA_CAP:
-			apdu.setIncomingAndReceive();
-			byte[] rcvd = apdu.getBuffer();
-			short size = Util.makeShort(rcvd[ISO7816.OFFSET_P2], rcvd[ISO7816.OFFSET_P1]);
-			if (external_minutiae == null) {
-				external_minutiae = new short[size];
-			}
+			receiveMinutiae(apdu, external_minutiae);
 
-			int k = 0;
-			for (int i = apdu.getOffsetCdata(); i < apdu.getOffsetCdata() + size -1; i+=2) {
-				external_minutiae[k] = 
-						Util.makeShort(
-								apdu.getBuffer()[i+1],apdu.getBuffer()[i]);
-				k++;
-			}
-
-			rcvd[0] = (byte) 69;
+			buffer[0] = (byte) 69;
 			apdu.setOutgoingAndSend((short) 0, (short) 1);
 			break;
 
 		case INS_SET_TEMPLATE_CAP:
-			apdu.setIncomingAndReceive();
-			rcvd = apdu.getBuffer();
-			size = Util.makeShort(rcvd[ISO7816.OFFSET_P2], rcvd[ISO7816.OFFSET_P1]);
-			if (external_template == null) {
-				external_template = new byte[size];
-			}
-			short packetSize = PACKET_SIZE;
+			tempCapOffset = receiveTemplateChunk(apdu, external_template, tempCapOffset);
+			short size = Util.makeShort(buffer[ISO7816.OFFSET_P2], buffer[ISO7816.OFFSET_P1]);
 
-			if ((short) (tempCapNumber *  PACKET_SIZE) + PACKET_SIZE >= size) {
-				packetSize = (short) (size - (short) (tempCapNumber *  PACKET_SIZE));
-			}
-
-			Util.arrayCopy(rcvd, apdu.getOffsetCdata(), external_template, (short) (tempCapNumber *  PACKET_SIZE) , packetSize);
-
-
-			rcvd[0] = (byte) 69;
+			buffer[0] = (byte) 69;
 			apdu.setOutgoingAndSend((short) 0, (short) 1);
-			++tempCapNumber;
+			if (tempCapOffset >= size) {
+				// the template is complete, the next upload starts from the beginning
+				tempCapOffset = 0;
+				external_cylinders = (short) (size / CYLINDER_SIZE);
+				mccBase.computeNorms(external_template, external_cylinders, external_norms);
+			}
 			break;
 
 		case INS_ENROLL_TEMPLATE:
-			apdu.setIncomingAndReceive();
-			rcvd = apdu.getBuffer();
-			size = Util.makeShort(rcvd[ISO7816.OFFSET_P2], rcvd[ISO7816.OFFSET_P1]);
-			if (template == null) {
-				template = new byte[size];
+			tempEnrollOffset = receiveTemplateChunk(apdu, template, tempEnrollOffset);
+			size = Util.makeShort(buffer[ISO7816.OFFSET_P2], buffer[ISO7816.OFFSET_P1]);
+			if (tempEnrollOffset >= size) {
+				tempEnrollOffset = 0;
+				cylinders = (short) (size / CYLINDER_SIZE);
+				mccBase.computeNorms(template, cylinders, norms);
 			}
-			packetSize = PACKET_SIZE;
-
-			if ((short) (tempEnrollNumber *  PACKET_SIZE) + PACKET_SIZE >= size) {
-				packetSize = (short) (size - (short) (tempEnrollNumber *  PACKET_SIZE));
-			}
-
-			Util.arrayCopy(rcvd, apdu.getOffsetCdata(), template, (short) (tempEnrollNumber *  PACKET_SIZE) , packetSize);
-			++tempEnrollNumber;
 			break;
 		case INS_ENROLL_MINUTIAE:
-			apdu.setIncomingAndReceive();
-			rcvd = apdu.getBuffer();
-			size = Util.makeShort(rcvd[ISO7816.OFFSET_P2], rcvd[ISO7816.OFFSET_P1]);
-			if (minutiae == null) {
-				minutiae = new short[size];
-			}
-
-			k = 0;
-			for (int i = apdu.getOffsetCdata(); i < apdu.getOffsetCdata() + size -1; i+=2) {
-				minutiae[k] = 
-						Util.makeShort(
-								apdu.getBuffer()[i+1],apdu.getBuffer()[i]);
-				k++;
-			}
+			receiveMinutiae(apdu, minutiae);
 
-			rcvd[0] = (byte) 69;
+			buffer[0] = (byte) 69;
 			apdu.setOutgoingAndSend((short) 0, (short) 1);
 			break;
 		case INS_MATCH:
 
-			short score = mccBase.match(template, external_template, minutiae, external_minutiae, apdu);
-			apdu.getBuffer()[0] = (byte) (score & 0xFF);
-			apdu.getBuffer()[1] = (byte) ((score>>8)&0xFF);
+			short score = mccBase.match(template, cylinders, external_template, external_cylinders,
+					norms, external_norms, minutiae, external_minutiae, apdu);
+			buffer[0] = (byte) (score & 0xFF);
+			buffer[1] = (byte) ((score>>8)&0xFF);
 			apdu.setOutgoingAndSend((short) 0, (short) 2);
 			break;
 		case RESET:
-			tempCapNumber = 0;
-			external_minutiae = null;
-			external_template = null;
+			tempCapOffset = 0;
+			external_cylinders = 0;
 
-			apdu.getBuffer()[0] = (byte) (69);
+			buffer[0] = (byte) (69);
 			apdu.setOutgoingAndSend((short) 0, (short) 1);
 			break;
 		default:
@@ -209,4 +427,4 @@ public class MonApplet extends Applet {
 		}
 	}
 
-}
\ No newline at end of file
+}
@@ -8,6 +8,26 @@ package monpackage;
  */
 public class Util {
 
+	/** Number of 1's in the binary representation of each byte value (indexed by b & 0xFF) **/
+	private final static byte[] POPCOUNT = new byte[]{
+			0,1,1,2,1,2,2,3,1,2,2,3,2,3,3,4,
+			1,2,2,3,2,3,3,4,2,3,3,4,3,4,4,5,
+			1,2,2,3,2,3,3,4,2,3,3,4,3,4,4,5,
+			2,3,3,4,3,4,4,5,3,4,4,5,4,5,5,6,
+			1,2,2,3,2,3,3,4,2,3,3,4,3,4,4,5,
+			2,3,3,4,3,4,4,5,3,4,4,5,4,5,5,6,
+			2,3,3,4,3,4,4,5,3,4,4,5,4,5,5,6,
+			3,4,4,5,4,5,5,6,4,5,5,6,5,6,6,7,
+			1,2,2,3,2,3,3,4,2,3,3,4,3,4,4,5,
+			2,3,3,4,3,4,4,5,3,4,4,5,4,5,5,6,
+			2,3,3,4,3,4,4,5,3,4,4,5,4,5,5,6,
+			3,4,4,5,4,5,5,6,4,5,5,6,5,6,6,7,
+			2,3,3,4,3,4,4,5,3,4,4,5,4,5,5,6,
+			3,4,4,5,4,5,5,6,4,5,5,6,5,6,6,7,
+			3,4,4,5,4,5,5,6,4,5,5,6,5,6,6,7,
+			4,5,5,6,5,6,6,7,5,6,6,7,6,7,7,8
+	};
+
 	/**
 	 * Returns the absolute value of a short value
 	 * @param x
@@ -84,6 +104,43 @@ public class Util {
 		return count;
 	}
 
+	/**
+	 * Computes the number of 1's of a packed bits array, i.e. the same value as
+	 * norm(byteArrayToBitsArray(tab)) over the given range, without expanding the bits.
+	 * Packed bytes carry the +128 bias of bitsArrayToByte, removed by flipping the high bit.
+	 * @param tab the packed bits
+	 * @param offset index of the first byte
+	 * @param length number of bytes
+	 * @return the number of 1's
+	 */
+	public static short packedNorm(byte[] tab, short offset, short length) {
+		short count = 0;
+		short end = (short) (offset + length);
+		for (short i = offset; i < end; i++) {
+			count += POPCOUNT[(short) ((tab[i] ^ 0x80) & 0xFF)];
+		}
+		return count;
+	}
+
+	/**
+	 * Computes the Hamming distance between two packed bits arrays, i.e. the same value
+	 * as norm(diff(a, b)) over the given ranges, by XOR-ing the packed bytes (the +128
+	 * bias cancels out)
+	 * @param a the first packed bits array
+	 * @param aOffset index of the first byte in a
+	 * @param b the second packed bits array
+	 * @param bOffset index of the first byte in b
+	 * @param length number of bytes
+	 * @return the number of differing bits
+	 */
+	public static short packedDistance(byte[] a, short aOffset, byte[] b, short bOffset, short length) {
+		short count = 0;
+		for (short i = 0; i < length; i++) {
+			count += POPCOUNT[(short) ((a[(short) (aOffset + i)] ^ b[(short) (bOffset + i)]) & 0xFF)];
+		}
+		return count;
+	}
+
 	/**
 	 * Convert an entire byte array (we assume its length is a multiple
 	 * of 8) to a compressed byte array